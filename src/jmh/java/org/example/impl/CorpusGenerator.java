@@ -0,0 +1,224 @@
+package org.example.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.example.FileType;
+
+import picocli.CommandLine;
+
+/**
+ * Writes a synthetic mail archive for benchmarks: a zip of emails, where every email above the last
+ * level carries a zip attachment of further emails. The same options and seed always give the same
+ * bytes, so results of different runs can be compared.
+ */
+@CommandLine.Command(
+        name = "generate-corpus",
+        mixinStandardHelpOptions = true,
+        description = "Write a synthetic mail archive"
+)
+public class CorpusGenerator implements Callable<Integer> {
+
+    private static final LocalDateTime ENTRY_TIME = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    private static final String[] WORDS = {
+            "the", "report", "meeting", "attached", "please", "review", "quarter", "numbers", "before",
+            "friday", "thanks", "regards", "project", "update", "schedule", "budget", "contract", "draft",
+            "client", "call", "tomorrow", "agenda", "minutes", "follow", "up", "on", "with", "and", "for",
+            "to", "a", "of", "we", "need", "your", "approval", "final", "version", "deadline", "team"
+    };
+
+    private static final int LINE_LENGTH = 76;
+
+    @CommandLine.Option(names = {"-o", "--output"}, description = "Archive file to write", required = false)
+    private Path output = Paths.get("build/corpus/archive.zip");
+
+    @CommandLine.Option(names = {"-n", "--entries"}, description = "Number of emails in every archive", required = false)
+    private int entries = 100;
+
+    @CommandLine.Option(names = {"-s", "--message-size"}, description = "Approximate body size of the innermost emails in bytes", required = false)
+    private int messageSize = 4096;
+
+    @CommandLine.Option(names = {"-d", "--depth"}, description = "Number of archive levels attached to emails below the top level archive", required = false)
+    private int depth = 0;
+
+    @CommandLine.Option(names = {"-c", "--compression"}, description = "Deflate level of the archive entries, 0 stores them", required = false)
+    private int compression = 6;
+
+    @CommandLine.Option(names = {"--seed"}, description = "Seed of the generated text", required = false)
+    private long seed = 42;
+
+    private Random random;
+
+    private int messageCounter;
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new CorpusGenerator()).execute(args));
+    }
+
+    @Override
+    public Integer call() throws IOException {
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            write(out);
+        }
+        System.out.println("Wrote " + Files.size(output) + " bytes to " + output
+                + ", format : " + FileType.ZIP + "," + FileType.EML + ("," + FileType.ZIP + "," + FileType.EML).repeat(depth));
+        return 0;
+    }
+
+    CorpusGenerator entries(int entries) {
+        this.entries = entries;
+        return this;
+    }
+
+    CorpusGenerator messageSize(int messageSize) {
+        this.messageSize = messageSize;
+        return this;
+    }
+
+    CorpusGenerator depth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    CorpusGenerator compression(int compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    CorpusGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * File types to pass to the extractor for the generated archive.
+     */
+    List<FileType> getFormat() {
+        List<FileType> format = new ArrayList<>();
+        for (int level = 0; level <= depth; level++) {
+            format.add(FileType.ZIP);
+            format.add(FileType.EML);
+        }
+        return format;
+    }
+
+    void write(OutputStream out) throws IOException {
+        random = new Random(seed);
+        messageCounter = 0;
+        writeArchive(out, 0);
+    }
+
+    byte[] generateArchive() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * A single email as found at the first level, with its attachment when {@code depth} is above zero.
+     */
+    byte[] generateMessage() throws IOException {
+        random = new Random(seed);
+        messageCounter = 0;
+        return message(0);
+    }
+
+    private void writeArchive(OutputStream out, int level) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        if (compression == 0) {
+            zip.setMethod(ZipOutputStream.STORED);
+        } else {
+            zip.setLevel(compression);
+        }
+        for (int i = 0; i < entries; i++) {
+            byte[] message = message(level);
+            ZipEntry entry = new ZipEntry(String.format("message-%d-%05d.eml", level, i));
+            entry.setTimeLocal(ENTRY_TIME);
+            if (compression == 0) {
+                CRC32 crc = new CRC32();
+                crc.update(message);
+                entry.setSize(message.length);
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            zip.write(message);
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    private byte[] message(int level) throws IOException {
+        int id = ++messageCounter;
+        StringBuilder sb = new StringBuilder(messageSize + 1024);
+        sb.append("From: sender").append(random.nextInt(100)).append("@example.org\r\n");
+        sb.append("To: recipient").append(random.nextInt(100)).append("@example.com\r\n");
+        sb.append("Subject: Message ").append(id).append(" at level ").append(level).append("\r\n");
+        sb.append("Message-ID: <").append(id).append(".").append(seed).append("@corpus.example>\r\n");
+        sb.append("Date: Mon, 1 Jan 2024 00:00:00 +0000\r\n");
+        sb.append("MIME-Version: 1.0\r\n");
+        if (level == depth) {
+            sb.append("Content-Type: text/plain; charset=us-ascii\r\n");
+            sb.append("Content-Transfer-Encoding: 7bit\r\n\r\n");
+            appendText(sb, messageSize);
+            return sb.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        ByteArrayOutputStream attachment = new ByteArrayOutputStream();
+        writeArchive(attachment, level + 1);
+        String boundary = "----=_Part_" + id;
+        sb.append("Content-Type: multipart/mixed;\r\n boundary=\"").append(boundary).append("\"\r\n\r\n");
+        sb.append("This is a multi-part message in MIME format.\r\n");
+        sb.append("--").append(boundary).append("\r\n");
+        sb.append("Content-Type: text/plain; charset=us-ascii\r\n");
+        sb.append("Content-Transfer-Encoding: 7bit\r\n\r\n");
+        appendText(sb, 256);
+        sb.append("--").append(boundary).append("\r\n");
+        sb.append("Content-Type: application/zip;\r\n name=\"archive-").append(id).append(".zip\"\r\n");
+        sb.append("Content-Transfer-Encoding: base64\r\n");
+        sb.append("Content-Disposition: attachment;\r\n filename=\"archive-").append(id).append(".zip\"\r\n\r\n");
+        sb.append(Base64.getMimeEncoder().encodeToString(attachment.toByteArray())).append("\r\n");
+        sb.append("--").append(boundary).append("--\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void appendText(StringBuilder sb, int size) {
+        int written = 0;
+        int lineLength = 0;
+        while (written < size) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if (lineLength + word.length() + 1 > LINE_LENGTH) {
+                sb.append("\r\n");
+                written += 2;
+                lineLength = 0;
+            } else if (lineLength > 0) {
+                sb.append(' ');
+                written++;
+                lineLength++;
+            }
+            sb.append(word);
+            written += word.length();
+            lineLength += word.length();
+        }
+        sb.append("\r\n");
+    }
+}
@@ -0,0 +1,104 @@
+package org.example.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.io.FileUtils;
+import org.example.FileType;
+import org.example.MimeEngine;
+import org.example.ZipReadMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole extraction of a generated archive, from reading the zip entries to writing the emails.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    @Param({"100"})
+    public int entries;
+
+    @Param({"4096"})
+    public int messageSize;
+
+    @Param({"0", "1"})
+    public int depth;
+
+    @Param({"0", "6"})
+    public int compression;
+
+    @Param({"CENTRAL_DIRECTORY", "STREAM"})
+    public ZipReadMode zipReadMode;
+
+    @Param({"JAVAMAIL", "STREAMING"})
+    public MimeEngine mimeEngine;
+
+    @Param({"1"})
+    public int threads;
+
+    @Param({"false"})
+    public boolean directBuffers;
+
+    private Path directory;
+
+    private File archive;
+
+    private ArrayDeque<FileType> format;
+
+    private ExtractionSettings settings;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("extraction-benchmark");
+        archive = directory.resolve("archive.zip").toFile();
+        CorpusGenerator generator = new CorpusGenerator()
+                .entries(entries)
+                .messageSize(messageSize)
+                .depth(depth)
+                .compression(compression);
+        FileUtils.writeByteArrayToFile(archive, generator.generateArchive());
+        format = new ArrayDeque<>(generator.getFormat());
+        settings = new ExtractionSettings()
+                .outputPath(directory.resolve("output"))
+                .maximumOutputSize(Long.MAX_VALUE)
+                .zipReadMode(zipReadMode)
+                .mimeEngine(mimeEngine)
+                .threads(threads)
+                .directBuffers(directBuffers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public void extract() throws IOException, MessagingException {
+        try (FileProcessor fileProcessor = new FileProcessor(settings)) {
+            fileProcessor.process(archive, format.clone());
+        }
+    }
+}
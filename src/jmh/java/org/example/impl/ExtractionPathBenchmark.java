@@ -0,0 +1,78 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Book keeping done for every archive entry and attachment, at the depth of a typical nested archive.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractionPathBenchmark {
+
+    private final SourceEntry archive = new SourceEntry("archive.zip", 0);
+
+    private final SourceEntry message = new SourceEntry("message-0-00042.eml", 42, "1c291ca3:4096");
+
+    private final SourceEntry attachment = new SourceEntry("archive-43.zip", 1);
+
+    private final SourceEntry innerMessage = new SourceEntry("message-1-00007.eml", 7, "8f2ab1d0:4096");
+
+    private ExtractionPath extractionPath;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        extractionPath = new ExtractionPath();
+    }
+
+    @Benchmark
+    public int pushPop() throws IOException {
+        try (
+                Closeable archiveSegment = extractionPath.pushZip(archive);
+                Closeable messageSegment = extractionPath.pushEml(message);
+                Closeable attachmentSegment = extractionPath.pushZip(attachment);
+                Closeable innerMessageSegment = extractionPath.pushEml(innerMessage)
+        ) {
+            return extractionPath.toOrdinals().length;
+        }
+    }
+
+    @Benchmark
+    public String pushPopWithKey() throws IOException {
+        try (
+                Closeable archiveSegment = extractionPath.pushZip(archive);
+                Closeable messageSegment = extractionPath.pushEml(message);
+                Closeable attachmentSegment = extractionPath.pushZip(attachment);
+                Closeable innerMessageSegment = extractionPath.pushEml(innerMessage)
+        ) {
+            return extractionPath.toKey();
+        }
+    }
+
+    @Benchmark
+    public ExtractionPath copy() throws IOException {
+        try (
+                Closeable archiveSegment = extractionPath.pushZip(archive);
+                Closeable messageSegment = extractionPath.pushEml(message)
+        ) {
+            return extractionPath.copy();
+        }
+    }
+}
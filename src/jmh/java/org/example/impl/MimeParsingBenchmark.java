@@ -0,0 +1,99 @@
+package org.example.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of an email with a zip attachment and decoding of the attachment, as done for every email
+ * which is not the last extraction level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MimeParsingBenchmark {
+
+    @Param({"10", "100"})
+    public int attachmentEntries;
+
+    @Param({"4096"})
+    public int messageSize;
+
+    private byte[] message;
+
+    private final byte[] readBuffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        message = new CorpusGenerator()
+                .entries(attachmentEntries)
+                .messageSize(messageSize)
+                .depth(1)
+                .generateMessage();
+    }
+
+    @Benchmark
+    public long javaMail() throws IOException, MessagingException {
+        Session mailSession = Session.getDefaultInstance(new Properties(), null);
+        MimeMessage mimeMessage = new MimeMessage(mailSession, new ByteArrayInputStream(message));
+        long read = 0;
+        if (mimeMessage.getContent() instanceof Multipart multipart) {
+            for (BodyPart bodyPart : MessageUtils.toBodyParts(multipart)) {
+                if (MessageUtils.isZip(bodyPart)) {
+                    try (InputStream inputStream = bodyPart.getInputStream()) {
+                        read += drain(inputStream);
+                    }
+                }
+            }
+        }
+        return read;
+    }
+
+    @Benchmark
+    public long streaming() throws IOException, MessagingException {
+        MimeStreamScanner scanner = new MimeStreamScanner(new ByteArrayInputStream(message), readBuffer.length);
+        long read = 0;
+        MimeStreamScanner.Part part;
+        while ((part = scanner.nextPart()) != null) {
+            if (MessageUtils.isZip(part)) {
+                try (InputStream inputStream = part.getInputStream()) {
+                    read += drain(inputStream);
+                }
+            }
+        }
+        return read;
+    }
+
+    private long drain(InputStream inputStream) throws IOException {
+        long read = 0;
+        int count;
+        while ((count = inputStream.read(readBuffer)) >= 0) {
+            read += count;
+        }
+        return read;
+    }
+}
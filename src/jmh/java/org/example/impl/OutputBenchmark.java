@@ -0,0 +1,116 @@
+package org.example.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing of an extracted email: the quota checked stream alone, and the output file as written by
+ * {@code FileProcessor.writeOutputEml}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    @Param({"8192"})
+    public int bufferSize;
+
+    private byte[] content;
+
+    private Path directory;
+
+    private File inputFile;
+
+    private File outputFile;
+
+    private BufferedStreamFactory bufferedStreamFactory;
+
+    private ExtractionQuota quota;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        content = new CorpusGenerator().messageSize(size).generateMessage();
+        directory = Files.createTempDirectory("output-benchmark");
+        inputFile = directory.resolve("input.eml").toFile();
+        outputFile = directory.resolve("output.eml").toFile();
+        FileUtils.writeByteArrayToFile(inputFile, content);
+        bufferedStreamFactory = new BufferedStreamFactory(bufferSize, Long.MAX_VALUE);
+        quota = ExtractionQuota.ofTotal(Long.MAX_VALUE, new ExtractionMetrics());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Benchmark
+    public void limitedStreamSingleBytes() throws IOException {
+        try (OutputStream out = new LimitedStream(OutputStream.nullOutputStream(), quota)) {
+            for (byte b : content) {
+                out.write(b);
+            }
+        }
+    }
+
+    @Benchmark
+    public void limitedStreamArrays() throws IOException {
+        try (OutputStream out = new LimitedStream(OutputStream.nullOutputStream(), quota)) {
+            IOUtils.copy(new ByteArrayInputStream(content), out, bufferSize);
+        }
+    }
+
+    @Benchmark
+    public void writeFile() throws IOException {
+        try (
+                InputStream in = new ByteArrayInputStream(content);
+                OutputStream out = bufferedStreamFactory.writeFile(outputFile)
+        ) {
+            IOUtils.copy(in, out, bufferSize);
+        }
+    }
+
+    @Benchmark
+    public void copyFile() throws IOException {
+        try (
+                InputStream in = bufferedStreamFactory.readFile(inputFile);
+                OutputStream out = bufferedStreamFactory.writeFile(outputFile)
+        ) {
+            IOUtils.copy(in, out, bufferSize);
+        }
+    }
+
+    @Benchmark
+    public void transferFile() throws IOException {
+        try (InputStream in = bufferedStreamFactory.readFile(inputFile)) {
+            bufferedStreamFactory.transferFile((FileRangeInputStream) in, outputFile);
+        }
+    }
+}
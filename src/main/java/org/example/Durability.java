@@ -0,0 +1,7 @@
+package org.example;
+
+public enum Durability {
+    NONE,
+    FILE,
+    BATCH
+}
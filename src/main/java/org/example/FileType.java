@@ -2,5 +2,9 @@ package org.example;
 
 public enum FileType {
     ZIP,
-    EML
+    EML,
+    MBOX,
+    MAILDIR,
+    TAR,
+    GZ
 }
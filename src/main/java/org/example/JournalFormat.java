@@ -0,0 +1,6 @@
+package org.example;
+
+public enum JournalFormat {
+    TEXT,
+    JSON
+}
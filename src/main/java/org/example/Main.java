@@ -1,12 +1,23 @@
 package org.example;
 
+import java.util.Arrays;
+
 import org.example.impl.ExtractMail;
+import org.example.impl.ExtractionServer;
+import org.example.impl.JournalReader;
 
 import picocli.CommandLine;
 
 public class Main {
     public static void main(String[] args) {
-        int exitCode = new CommandLine(new ExtractMail()).execute(args);
+        int exitCode;
+        if (args.length > 0 && JournalReader.COMMAND.equals(args[0])) {
+            exitCode = new CommandLine(new JournalReader()).execute(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length > 0 && ExtractionServer.COMMAND.equals(args[0])) {
+            exitCode = new CommandLine(new ExtractionServer()).execute(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            exitCode = new CommandLine(new ExtractMail()).execute(args);
+        }
         System.exit(exitCode);
     }
 
@@ -0,0 +1,9 @@
+package org.example;
+
+public enum OutputFormat {
+    DIRECTORY,
+    ZIP,
+    MBOX,
+    TAR,
+    INDEX
+}
@@ -0,0 +1,7 @@
+package org.example;
+
+public enum OutputNaming {
+    SEQUENTIAL,
+    PATH,
+    CONTENT
+}
@@ -0,0 +1,6 @@
+package org.example;
+
+public enum ZipReadMode {
+    STREAM,
+    CENTRAL_DIRECTORY
+}
@@ -0,0 +1,181 @@
+package org.example.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Reusable I/O buffers of the configured size, shared by the readers, inflaters and writers of all the
+ * extraction threads. A buffer is acquired when a stream starts moving bytes and released when it is
+ * closed, so the number of live buffers follows the number of open streams instead of the number of
+ * entries processed.
+ * <p>
+ * Channel reads go through {@link ByteBuffer}s, which can be allocated off heap to spare the copy the
+ * JDK makes from a heap buffer. Stream APIs need heap arrays, pooled separately. The pool keeps at most
+ * {@link #getCapacity()} free buffers of each kind, buffers released beyond that are left to the GC.
+ * <p>
+ * A released buffer must not be used any more by the releasing stream.
+ */
+class BufferPool {
+
+    /**
+     * Bytes kept by the free buffers of each kind.
+     */
+    private static final long RETAINED_BYTES = 32L * 1024 * 1024;
+
+    private static final int MIN_CAPACITY = 4;
+
+    private static final int MAX_CAPACITY = 256;
+
+    private final int bufferSize;
+
+    private final boolean direct;
+
+    private final int capacity;
+
+    private final FreeList<ByteBuffer> buffers = new FreeList<>();
+
+    private final FreeList<byte[]> arrays = new FreeList<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder discarded = new LongAdder();
+
+    BufferPool(int bufferSize, boolean direct) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size should be positive : " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.capacity = (int) Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, RETAINED_BYTES / bufferSize));
+    }
+
+    /**
+     * A cleared buffer of {@link #getBufferSize()} bytes, direct when the pool was created so.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            hits.increment();
+            return buffer;
+        }
+        misses.increment();
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        buffer.clear();
+        if (!buffers.offer(buffer, capacity)) {
+            discarded.increment();
+        }
+    }
+
+    /**
+     * A heap array of {@link #getBufferSize()} bytes, its content is undefined.
+     */
+    byte[] acquireArray() {
+        byte[] array = arrays.poll();
+        if (array != null) {
+            hits.increment();
+            return array;
+        }
+        misses.increment();
+        return new byte[bufferSize];
+    }
+
+    void releaseArray(byte[] array) {
+        if (array.length != bufferSize) {
+            return;
+        }
+        if (!arrays.offer(array, capacity)) {
+            discarded.increment();
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    boolean isDirect() {
+        return direct;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Buffers allocated because none was free.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Buffers released while the pool was full.
+     */
+    long getDiscarded() {
+        return discarded.sum();
+    }
+
+    int getFree() {
+        return buffers.size() + arrays.size();
+    }
+
+    String describe() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        double hitRate = total == 0 ? 0 : 100.0 * hitCount / total;
+        return String.format(
+                "%d hits, %d misses (%.1f%% hit rate), %d discarded, %d free buffers of %s%s",
+                hitCount,
+                getMisses(),
+                hitRate,
+                getDiscarded(),
+                getFree(),
+                FileUtils.byteCountToDisplaySize(bufferSize),
+                direct ? ", file reads off heap" : ""
+        );
+    }
+
+    private static class FreeList<T> {
+
+        private final Queue<T> free = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T item = free.poll();
+            if (item != null) {
+                size.decrementAndGet();
+            }
+            return item;
+        }
+
+        boolean offer(T item, int capacity) {
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                return false;
+            }
+            free.offer(item);
+            return true;
+        }
+
+        int size() {
+            return Math.max(0, size.get());
+        }
+    }
+}
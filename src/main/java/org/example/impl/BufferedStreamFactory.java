@@ -1,42 +1,127 @@
 package org.example.impl;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.example.Durability;
 
 public class BufferedStreamFactory {
 
-    private final int bufferSize;
+    private final BufferPool bufferPool;
+
+    private final ExtractionQuota quota;
+
+    private final ExtractionMetrics metrics;
+
+    /**
+     * Compression of the email files, null to write them as they are.
+     */
+    private final OutputCompressor compressor;
 
-    private final OutputSizeCounter outputSizeCounter;
+    private final OutputDurability durability;
 
     public BufferedStreamFactory(
             int bufferSize,
             long maximumOutputSize
     ) {
-        this.bufferSize = bufferSize;
-        this.outputSizeCounter = new OutputSizeCounter(maximumOutputSize);
+        this(new BufferPool(bufferSize, false), maximumOutputSize, new ExtractionMetrics());
+    }
+
+    private BufferedStreamFactory(
+            BufferPool bufferPool,
+            long maximumOutputSize,
+            ExtractionMetrics metrics
+    ) {
+        this(bufferPool, ExtractionQuota.ofTotal(maximumOutputSize, metrics), metrics, null, new OutputDurability(Durability.NONE, null));
+    }
+
+    BufferedStreamFactory(
+            BufferPool bufferPool,
+            ExtractionQuota quota,
+            ExtractionMetrics metrics,
+            OutputCompressor compressor,
+            OutputDurability durability
+    ) {
+        this.bufferPool = bufferPool;
+        this.quota = quota;
+        this.metrics = metrics;
+        this.compressor = compressor;
+        this.durability = durability;
+    }
+
+    public FileRangeInputStream readFile(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return new FileRangeInputStream(channel, 0, channel.size(), bufferPool, true);
     }
 
-    public InputStream readFile(File file) throws FileNotFoundException {
-        FileInputStream fileInputStream = new FileInputStream(file);
-        return new BufferedInputStream(fileInputStream, bufferSize);
+    public OutputStream writeFile(File file) throws IOException {
+        FileOutputStream fileOutputStream = durability.openFile(file);
+        OutputStream bufferedOutputStream = new PooledBufferedOutputStream(fileOutputStream, bufferPool);
+        if (compressor != null) {
+            try {
+                bufferedOutputStream = compressor.wrap(bufferedOutputStream);
+            } catch (IOException e) {
+                bufferedOutputStream.close();
+                Files.deleteIfExists(file.toPath());
+                throw e;
+            }
+        }
+        return metrics.meter(ExtractionMetrics.Stage.OUTPUT_WRITE, new LimitedStream(bufferedOutputStream, quota, file));
+
+    }
+
+    /**
+     * Stream writing one email to a file, deleted when the email is aborted.
+     */
+    EmailOutputStream writeEmailFile(File file) throws IOException {
+        return EmailOutputStream.toFile(writeFile(file), file);
     }
 
-    public OutputStream writeFile(File file) throws FileNotFoundException {
-        FileOutputStream fileOutputStream = new FileOutputStream(file);
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream);
-        return wrapWithLimit(bufferedOutputStream);
+    /**
+     * Stream writing one email to the given container under the given name, left out of it when the email is aborted.
+     */
+    EmailOutputStream writeEntry(OutputSink outputSink, String name) {
+        OutputSink.EntryOutputStream entry = outputSink.open(name);
+        return new EmailOutputStream(metrics.meter(ExtractionMetrics.Stage.OUTPUT_WRITE, new LimitedStream(entry, quota))) {
+            @Override
+            void abort() throws IOException {
+                // before the streams above it are closed, closing the entry would append it
+                entry.abort();
+                super.abort();
+            }
+        };
+    }
 
+    /**
+     * Copies a file range verbatim without passing the bytes through user space.
+     */
+    void transferFile(FileRangeInputStream inputStream, File file) throws IOException {
+        // the whole range is charged up front, nothing is copied if it does not fit
+        quota.chargeOutput(0, inputStream.getLength());
+        ExtractionMetrics.StageTimer timer = metrics.timer(ExtractionMetrics.Stage.OUTPUT_WRITE);
+        timer.start();
+        try (FileChannel out = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            inputStream.transferTo(out);
+            durability.fileWritten(out);
+        } finally {
+            timer.stop();
+        }
+        timer.finish(inputStream.getLength());
     }
 
-    private OutputStream wrapWithLimit(BufferedOutputStream bufferedOutputStream) {
-        return new LimitedStream(bufferedOutputStream, outputSizeCounter);
+    BufferPool getBufferPool() {
+        return bufferPool;
     }
 
 }
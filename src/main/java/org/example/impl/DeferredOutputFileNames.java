@@ -0,0 +1,60 @@
+package org.example.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Output naming for parallel extraction. Files are written under temporary names and renamed once
+ * extraction is over, in the order a sequential run would have produced them.
+ */
+class DeferredOutputFileNames {
+
+    private static final Logger log = LogManager.getLogger(DeferredOutputFileNames.class);
+
+    private final Path outputPath;
+
+    private final AtomicLong temporaryFileCounter = new AtomicLong();
+
+    private final ConcurrentSkipListMap<int[], File> pendingFiles = new ConcurrentSkipListMap<>(Arrays::compare);
+
+    DeferredOutputFileNames(Path outputPath) {
+        this.outputPath = outputPath;
+    }
+
+    File reserve(ExtractionPath extractionPath) {
+        File file = new File(outputPath.toFile(), ".part" + temporaryFileCounter.incrementAndGet() + ".eml");
+        if (pendingFiles.putIfAbsent(extractionPath.toOrdinals(), file) != null) {
+            throw new IllegalStateException("Output already reserved for : " + extractionPath.toSingleLine());
+        }
+        return file;
+    }
+
+    void assignFinalNames(
+            OutputFileNameGenerator outputFileNameGenerator,
+            BiConsumer<File, File> renameListener
+    ) throws IOException {
+        for (Map.Entry<int[], File> entry : pendingFiles.entrySet()) {
+            File pendingFile = entry.getValue();
+            if (!pendingFile.exists()) {
+                continue;
+            }
+            File finalFile = new File(outputPath.toFile(), outputFileNameGenerator.generateNewOutputFileName());
+            if (log.isDebugEnabled()) {
+                log.debug("Renaming " + pendingFile.getName() + " to " + finalFile.getName());
+            }
+            Files.move(pendingFile.toPath(), finalFile.toPath());
+            renameListener.accept(pendingFile, finalFile);
+        }
+        pendingFiles.clear();
+    }
+}
@@ -0,0 +1,107 @@
+package org.example.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Stream writing one extracted email, one of the layers naming, deduplicating or recording it. The email is
+ * kept only once {@link #commit()} is called after its last byte, every layer then keeps it from the innermost
+ * one out. Closing the stream without committing it, because reading or writing the email failed, aborts it
+ * instead: nothing is kept of it.
+ */
+abstract class EmailOutputStream extends OutputStream {
+
+    protected final OutputStream out;
+
+    private boolean closed = false;
+
+    EmailOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Stream writing to a file, deleted when the email is aborted.
+     */
+    static EmailOutputStream toFile(OutputStream out, File file) {
+        return new EmailOutputStream(out) {
+            @Override
+            protected void aborted() throws IOException {
+                Files.deleteIfExists(file.toPath());
+            }
+        };
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Closes the stream and keeps the email, or drops what this layer did of it when keeping it fails.
+     */
+    void commit() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (out instanceof EmailOutputStream email) {
+                email.commit();
+            } else {
+                out.close();
+            }
+            committed();
+        } catch (IOException | RuntimeException e) {
+            aborted();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the stream and drops the email, as {@link #close()} does when the email was not committed.
+     */
+    void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (out instanceof EmailOutputStream email) {
+                email.abort();
+            } else {
+                out.close();
+            }
+        } finally {
+            aborted();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        abort();
+    }
+
+    /**
+     * Keeps the email once the layers below kept it.
+     */
+    protected void committed() throws IOException {
+    }
+
+    /**
+     * Drops what this layer did of the email, once the layers below were closed.
+     */
+    protected void aborted() throws IOException {
+    }
+}
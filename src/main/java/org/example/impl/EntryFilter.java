@@ -0,0 +1,121 @@
+package org.example.impl;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects the zip entries to extract from what the archive tells about them, before any byte of the
+ * entry is inflated.
+ * <p>
+ * Globs use the {@link FileSystem#getPathMatcher(String)} syntax. A glob without {@code /} is matched
+ * against the last segment of the entry name, {@code *.eml} keeps emails in any directory, others against
+ * the whole name. An entry is kept when it matches one of the includes, or there are none, and none of
+ * the excludes.
+ * <p>
+ * Sizes are known for every entry read through the central directory, but a zip stream may only give
+ * them after the entry data. Limits on an unknown size or compression ratio do not filter the entry out.
+ */
+class EntryFilter {
+
+    static final EntryFilter ACCEPT_ALL = new EntryFilter(List.of(), List.of(), -1, -1, -1);
+
+    private final List<Glob> includes;
+
+    private final List<Glob> excludes;
+
+    private final long minimumSize;
+
+    private final long maximumSize;
+
+    private final double maximumCompressionRatio;
+
+    /**
+     * @param minimumSize             smallest uncompressed size kept, negative for no limit
+     * @param maximumSize             largest uncompressed size kept, negative for no limit
+     * @param maximumCompressionRatio largest uncompressed to compressed size ratio kept, negative for no limit
+     */
+    EntryFilter(List<String> includes, List<String> excludes, long minimumSize, long maximumSize, double maximumCompressionRatio) {
+        if (minimumSize >= 0 && maximumSize >= 0 && minimumSize > maximumSize) {
+            throw new IllegalArgumentException("Minimum entry size is larger than the maximum : " + minimumSize + " > " + maximumSize);
+        }
+        if (maximumCompressionRatio >= 0 && maximumCompressionRatio < 1) {
+            throw new IllegalArgumentException("Maximum compression ratio should be at least 1 : " + maximumCompressionRatio);
+        }
+        this.includes = compile(includes);
+        this.excludes = compile(excludes);
+        this.minimumSize = minimumSize;
+        this.maximumSize = maximumSize;
+        this.maximumCompressionRatio = maximumCompressionRatio;
+    }
+
+    boolean isAcceptAll() {
+        return includes.isEmpty() && excludes.isEmpty() && minimumSize < 0 && maximumSize < 0 && maximumCompressionRatio < 0;
+    }
+
+    /**
+     * Why the entry is filtered out, null when it is extracted.
+     *
+     * @param size           uncompressed size, negative when unknown
+     * @param compressedSize compressed size, negative when unknown
+     */
+    String reject(String name, long size, long compressedSize) {
+        if (!includes.isEmpty() && !matchesAny(includes, name)) {
+            return "not included";
+        }
+        if (matchesAny(excludes, name)) {
+            return "excluded";
+        }
+        if (size >= 0) {
+            if (minimumSize >= 0 && size < minimumSize) {
+                return "smaller than " + minimumSize + " bytes";
+            }
+            if (maximumSize >= 0 && size > maximumSize) {
+                return "larger than " + maximumSize + " bytes";
+            }
+            if (maximumCompressionRatio >= 0 && compressedSize > 0 && (double) size / compressedSize > maximumCompressionRatio) {
+                return "compression ratio above " + maximumCompressionRatio;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matchesAny(List<Glob> globs, String name) {
+        for (Glob glob : globs) {
+            if (glob.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Glob> compile(List<String> patterns) {
+        List<Glob> globs = new ArrayList<>(patterns.size());
+        FileSystem fileSystem = FileSystems.getDefault();
+        for (String pattern : patterns) {
+            globs.add(new Glob(fileSystem.getPathMatcher("glob:" + pattern), pattern.indexOf('/') < 0));
+        }
+        return globs;
+    }
+
+    private record Glob(PathMatcher matcher, boolean fileNameOnly) {
+
+        boolean matches(String name) {
+            String matched = name;
+            if (fileNameOnly) {
+                String trimmed = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+                matched = trimmed.substring(trimmed.lastIndexOf('/') + 1);
+            }
+            try {
+                return matcher.matches(Path.of(matched));
+            } catch (InvalidPathException e) {
+                // a name no file could have, no glob matches it
+                return false;
+            }
+        }
+    }
+}
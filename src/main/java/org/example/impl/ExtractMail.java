@@ -1,16 +1,30 @@
 package org.example.impl;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.example.DedupMode;
+import org.example.Durability;
 import org.example.FileType;
+import org.example.MimeEngine;
+import org.example.OutputCompression;
+import org.example.OutputFormat;
+import org.example.OutputNaming;
+import org.example.ZipReadMode;
 
 import picocli.CommandLine;
 
@@ -23,33 +37,180 @@ public class ExtractMail implements Callable<Integer> {
 
     private static final Logger log = LogManager.getLogger(ExtractMail.class);
 
-    @CommandLine.Parameters(index = "0", description = "The file whose content to extract.")
-    private File inputFile;
+    /**
+     * Exit code of a run which completed but left out entries over a size limit.
+     */
+    public static final int QUOTA_EXCEEDED_EXIT_CODE = 3;
+
+    @CommandLine.Parameters(arity = "0..*", description = "The files whose content to extract. A directory is walked for the files it holds, unless it is the maildir to extract.")
+    private List<File> inputFiles = new ArrayList<>();
+
+    @CommandLine.Option(names = {"--input-list"}, description = "File listing more files to extract, one per line, - for standard input", required = false)
+    private Path inputList;
 
     @CommandLine.Option(names = {"-f", "--format"}, description = "Type of the file to extract", required = true, type = FileType.class, split = ",")
     private List<FileType> fileFormat;
 
-    @CommandLine.Option(names = {"-o", "--output"}, description = "Output path to extract files to", required = false)
+    @CommandLine.Option(names = {"-o", "--output"}, description = "Output path to extract files to, the container or index file for other output formats than DIRECTORY, - for standard output", required = false)
     private Path outputPath = Paths.get("./output");
 
+    @CommandLine.Option(names = {"--output-format"}, description = "How emails are written : ${COMPLETION-CANDIDATES}. DIRECTORY writes one file per email, INDEX a CSV line with the main headers of each email, read without its body, the others a single container", required = false)
+    private OutputFormat outputFormat = OutputFormat.DIRECTORY;
+
+    @CommandLine.Option(names = {"--naming"}, description = "How emails are named : ${COMPLETION-CANDIDATES}. SEQUENTIAL numbers them in extraction order, PATH and CONTENT name them after the hash of their extraction path or content, the same in every run", required = false)
+    private OutputNaming outputNaming = OutputNaming.SEQUENTIAL;
+
+    @CommandLine.Option(names = {"--compress"}, description = "Compression of the email files : ${COMPLETION-CANDIDATES}. The files get a .gz or .deflate extension, they are compressed by the writer threads, one per core unless --writer-threads is given, or by the extracting threads for emails past --in-flight-limit", required = false)
+    private OutputCompression outputCompression = OutputCompression.NONE;
+
+    @CommandLine.Option(names = {"--compression-level"}, description = "Compression level of the email files, from 1 for the fastest to 9 for the smallest", required = false)
+    private int compressionLevel = 6;
+
+    @CommandLine.Option(names = {"--durability"}, description = "When emails are forced to the disk : ${COMPLETION-CANDIDATES}. FILE forces each email once written, by the writer threads, one per core unless --writer-threads is given. BATCH forces every email written once extraction is over", required = false)
+    private Durability durability = Durability.NONE;
+
+    @CommandLine.Option(names = {"--shard-depth"}, description = "Levels of subdirectories emails named after a hash are spread over", required = false)
+    private int shardDepth = 2;
+
     @CommandLine.Option(names = {"-b", "--buffer"}, description = "Size of the buffers allocated when reading/writing files", required = false)
     private int bufferSize = 8192;
 
-    @CommandLine.Option(names = {"-l", "--limit"}, description = "Maximum number of bytes to write", required = false)
+    @CommandLine.Option(names = {"--direct-buffers"}, description = "Allocate the file read buffers off heap", required = false)
+    private boolean directBuffers;
+
+    @CommandLine.Option(names = {"-l", "--limit"}, description = "Maximum number of bytes to write, counted both for the emails and for the files once compressed", required = false)
     private long maximumOutputSizeBytes = FileUtils.ONE_GB;
 
+    @CommandLine.Option(names = {"--archive-limit"}, description = "Maximum number of bytes read out of the entries of a single archive, the rest of the archive is skipped", required = false)
+    private long archiveLimitBytes = -1;
+
+    @CommandLine.Option(names = {"--message-limit"}, description = "Maximum size of a single extracted email, larger ones are skipped", required = false)
+    private long messageLimitBytes = -1;
+
+    @CommandLine.Option(names = {"-z", "--zip-reader"}, description = "How zip files on disk are read : ${COMPLETION-CANDIDATES}", required = false)
+    private ZipReadMode zipReadMode = ZipReadMode.CENTRAL_DIRECTORY;
+
+    @CommandLine.Option(names = {"--nested-zip-reader"}, description = "How zip files inside archives and emails are read : ${COMPLETION-CANDIDATES}. CENTRAL_DIRECTORY spools them first, their entries are then extracted in parallel", required = false)
+    private ZipReadMode nestedZipReadMode = ZipReadMode.STREAM;
+
+    @CommandLine.Option(names = {"--spool-threshold"}, description = "Largest nested zip spooled in memory, larger ones go to a memory-mapped temporary file", required = false)
+    private long spoolThresholdBytes = 16 * FileUtils.ONE_MB;
+
+    @CommandLine.Option(names = {"--spool-directory"}, description = "Directory of the temporary files of spooled nested zips, defaults to the system temporary directory", required = false)
+    private Path spoolDirectory;
+
+    @CommandLine.Option(names = {"-t", "--threads"}, description = "Number of threads extracting independent archive entries and attachments", required = false)
+    private int threads = 1;
+
+    @CommandLine.Option(names = {"--writer-threads"}, description = "Number of threads writing extracted emails, 0 writes them on the extracting thread", required = false)
+    private int writerThreads = 0;
+
+    @CommandLine.Option(names = {"--in-flight-limit"}, description = "Maximum number of bytes read but not yet written when writer threads are used", required = false)
+    private long inFlightLimitBytes = 64 * FileUtils.ONE_MB;
+
+    @CommandLine.Option(names = {"-m", "--mime-engine"}, description = "How emails are parsed : ${COMPLETION-CANDIDATES}. STREAMING reads attachments without loading the whole email", required = false)
+    private MimeEngine mimeEngine = MimeEngine.JAVAMAIL;
+
+    @CommandLine.Option(names = {"-d", "--dedup"}, description = "What to do with emails identical to an already extracted one : ${COMPLETION-CANDIDATES}", required = false)
+    private DedupMode dedupMode = DedupMode.OFF;
+
+    @CommandLine.Option(names = {"--dedup-index"}, description = "File keeping the hashes of extracted emails between runs", required = false)
+    private Path dedupIndex;
+
+    @CommandLine.Option(names = {"--resume", "--incremental"}, description = "Keep the output of previous runs and only extract the entries not recorded as done in the manifest", required = false)
+    private boolean resume;
+
+    @CommandLine.Option(names = {"--manifest"}, description = "File recording the extracted entries, defaults to " + ExtractionSettings.DEFAULT_MANIFEST_NAME + " in the output path when resuming", required = false)
+    private Path manifestPath;
+
+    @CommandLine.Option(names = {"--progress-interval"}, description = "Seconds between progress lines in the log, 0 disables them", required = false)
+    private int progressInterval = 10;
+
+    @CommandLine.Option(names = {"--metrics-report"}, description = "JSON file to write the counters and stage timings of the run to", required = false)
+    private Path metricsReport;
+
+    @CommandLine.Option(names = {"--jmx"}, description = "Publish the metrics of the running extraction over JMX", required = false)
+    private boolean jmx;
+
+    @CommandLine.Option(names = {"--journal"}, description = "Binary file to record every entry extracted, skipped or failed to, read it back with read-journal", required = false)
+    private Path journalPath;
+
+    @CommandLine.Option(names = {"--include"}, description = "Glob of the archive entries to extract, can be repeated. A glob without / matches the file name in any directory", required = false)
+    private List<String> includes = new ArrayList<>();
+
+    @CommandLine.Option(names = {"--exclude"}, description = "Glob of the archive entries not to extract, can be repeated", required = false)
+    private List<String> excludes = new ArrayList<>();
+
+    @CommandLine.Option(names = {"--where"}, description = "Condition on the headers of the emails to write, can be repeated and all must hold. "
+            + "HEADER~REGEX, HEADER=VALUE or HEADER=@FILE of values, != and !~ to negate, Date<, <=, >, >= an ISO date. "
+            + "From, To, Cc, Bcc, Reply-To and Sender equal a value when one of their addresses does. "
+            + "Only the first 64 KB of an email are read to check it", required = false)
+    private List<String> headerConditions = new ArrayList<>();
+
+    @CommandLine.Option(names = {"--min-entry-size"}, description = "Skip archive entries smaller than this number of bytes once inflated", required = false)
+    private long minimumEntrySize = -1;
+
+    @CommandLine.Option(names = {"--max-entry-size"}, description = "Skip archive entries larger than this number of bytes once inflated", required = false)
+    private long maximumEntrySize = -1;
+
+    @CommandLine.Option(names = {"--max-compression-ratio"}, description = "Skip archive entries inflating to more than this many times their compressed size, as declared or as actually inflated", required = false)
+    private double maximumCompressionRatio = -1;
+
+    @CommandLine.Option(names = {"--plan"}, description = "Print how many entries and bytes each extraction level should yield, from archive directories and email headers, without extracting anything", required = false)
+    private boolean plan;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    /**
+     * Buffers shared with the other jobs of a server, null when run on its own.
+     */
+    private final BufferPool sharedBufferPool;
+
+    /**
+     * Threads shared with the other jobs of a server, null when run on its own.
+     */
+    private final ExtractionTaskRunner sharedTaskRunner;
+
+    public ExtractMail() {
+        this(null, null);
+    }
+
+    ExtractMail(BufferPool sharedBufferPool, ExtractionTaskRunner sharedTaskRunner) {
+        this.sharedBufferPool = sharedBufferPool;
+        this.sharedTaskRunner = sharedTaskRunner;
+    }
+
 
 
 
     @Override
     public Integer call() throws Exception {
-        if (!inputFile.exists()) {
-            log.error("File not exists : " + inputFile);
+        if (fileFormat.isEmpty()) {
+            throw new IllegalArgumentException("File format is empty");
+        }
+
+        boolean standardOutput = outputPath.toString().equals(OutputSink.STANDARD_OUTPUT);
+        if (sharedBufferPool != null) {
+            // the standard streams are those of the server, shared by every job
+            if (standardOutput || (inputList != null && inputList.toString().equals("-"))) {
+                throw new IllegalArgumentException("Jobs of a server cannot use the standard input or output");
+            }
+        } else if (standardOutput && !plan) {
+            // the log and anything else printed must not end up in the emails written
+            System.setOut(System.err);
+        }
+
+        List<File> inputs = collectInputs();
+        if (inputs == null) {
             return -1;
         }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No file to extract");
+        }
 
-        if (fileFormat.isEmpty()) {
-            throw new IllegalArgumentException("File format is empty");
+        if (fileFormat.lastIndexOf(FileType.MAILDIR) > 0) {
+            throw new IllegalArgumentException("MAILDIR can only be the first format, a maildir is a directory");
         }
 
         ArrayDeque<FileType> fileTypeStack = new ArrayDeque<>(fileFormat);
@@ -60,21 +221,117 @@ public class ExtractMail implements Callable<Integer> {
 
         int stackSizeBeforeProcessing = fileTypeStack.size();
 
-        FileProcessor fileProcessor = new FileProcessor(
-                outputPath,
-                bufferSize,
-                maximumOutputSizeBytes
-        );
+        ExtractionSettings settings = new ExtractionSettings()
+                .outputPath(outputPath)
+                .outputFormat(outputFormat)
+                .outputNaming(outputNaming)
+                .outputCompression(outputCompression)
+                .compressionLevel(compressionLevel)
+                .durability(durability)
+                .shardDepth(shardDepth)
+                .bufferSize(bufferSize)
+                .directBuffers(directBuffers)
+                .maximumOutputSize(maximumOutputSizeBytes)
+                .zipReadMode(zipReadMode)
+                .nestedZipReadMode(nestedZipReadMode)
+                .spoolThreshold(spoolThresholdBytes)
+                .spoolDirectory(spoolDirectory)
+                .threads(threads)
+                .writerThreads(writerThreads)
+                .inFlightLimit(inFlightLimitBytes)
+                .mimeEngine(mimeEngine)
+                .dedupMode(dedupMode)
+                .dedupIndex(dedupIndex)
+                .resume(resume)
+                .manifestPath(manifestPath)
+                .progressInterval(progressInterval)
+                .metricsReport(metricsReport)
+                .jmx(jmx)
+                .journalPath(journalPath)
+                .includes(includes)
+                .excludes(excludes)
+                .headerConditions(headerConditions)
+                .minimumEntrySize(minimumEntrySize)
+                .maximumEntrySize(maximumEntrySize)
+                .maximumCompressionRatio(maximumCompressionRatio)
+                .archiveLimit(archiveLimitBytes)
+                .messageLimit(messageLimitBytes);
 
-        fileProcessor.process(
-                inputFile,
-                fileTypeStack
-        );
+        if (sharedBufferPool != null) {
+            // the pools of the server are sized once for every job
+            settings.bufferSize(sharedBufferPool.getBufferSize())
+                    .directBuffers(sharedBufferPool.isDirect());
+        }
+        if (sharedTaskRunner != null) {
+            settings.threads(sharedTaskRunner.getThreads());
+        }
+
+        if (plan) {
+            try (ExtractionPlanner planner = new ExtractionPlanner(settings, fileFormat)) {
+                for (File input : inputs) {
+                    planner.plan(input);
+                }
+                planner.print(spec.commandLine().getOut());
+            }
+            return 0;
+        }
+
+        boolean quotaExceeded;
+        try (FileProcessor fileProcessor = new FileProcessor(settings, sharedBufferPool, sharedTaskRunner)) {
+            fileProcessor.process(
+                    inputs,
+                    fileTypeStack
+            );
+            quotaExceeded = fileProcessor.isQuotaExceeded();
+        }
 
         assert(fileTypeStack.size() == stackSizeBeforeProcessing);
 
+        if (quotaExceeded) {
+            log.error("Some entries were skipped, a size limit was reached");
+            return QUOTA_EXCEEDED_EXIT_CODE;
+        }
         return 0;
     }
 
+    /**
+     * Input files, directories walked and the list read. Null if one of them does not exist.
+     */
+    private List<File> collectInputs() throws IOException {
+        List<File> candidates = new ArrayList<>(inputFiles);
+        if (inputList != null) {
+            try (BufferedReader reader = inputList.toString().equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    : Files.newBufferedReader(inputList, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        candidates.add(new File(line.strip()));
+                    }
+                }
+            }
+        }
+        List<File> inputs = new ArrayList<>();
+        for (File candidate : candidates) {
+            if (!candidate.exists()) {
+                log.error("File not exists : " + candidate);
+                return null;
+            }
+            if (candidate.isDirectory() && fileFormat.get(0) != FileType.MAILDIR) {
+                // the output may be inside the walked directory, and is emptied before extracting
+                Path output = outputPath.toAbsolutePath().normalize();
+                try (Stream<Path> paths = Files.walk(candidate.toPath())) {
+                    paths.filter(Files::isRegularFile)
+                            .filter(path -> !path.toAbsolutePath().normalize().startsWith(output))
+                            .sorted()
+                            .forEach(path -> inputs.add(path.toFile()));
+                }
+            } else {
+                inputs.add(candidate);
+            }
+        }
+        return inputs;
+    }
+
 
 }
@@ -0,0 +1,200 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.example.FileType;
+
+/**
+ * Append only binary record of the extraction, replacing per entry log lines. Every archive and email
+ * entered gets a node id and refers to its parent node, so the events of parallel tasks can be
+ * interleaved. Entry names are written once and then referred to by id.
+ * <p>
+ * The file starts with {@link #MAGIC} and the start time in epoch milliseconds, followed by records
+ * made of a tag byte and unsigned varints, with signed values zigzag encoded:
+ * <pre>
+ * NAME    id, length, UTF-8 bytes
+ * ENTER   node, parent node, file type, name id, ordinal, offset, size, elapsed millis
+ * LEAVE   node, outcome, elapsed millis
+ * OUTPUT  node, file name
+ * RENAME  file name, new file name
+ * </pre>
+ * Name id 0 and parent node 0 stand for no name and no parent. {@link JournalReader} renders a journal.
+ */
+class ExtractionJournal implements Closeable {
+
+    static final byte[] MAGIC = {'M', 'X', 'J', 1};
+
+    static final byte NAME = 1;
+    static final byte ENTER = 2;
+    static final byte LEAVE = 3;
+    static final byte OUTPUT = 4;
+    static final byte RENAME = 5;
+
+    private static final int MAX_FIXED_RECORD_SIZE = 64;
+
+    enum Outcome {
+        COMPLETED,
+        FAILED,
+        SKIPPED
+    }
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer;
+
+    private final long startMillis;
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+
+    private int lastNode = 0;
+
+    ExtractionJournal(Path journalFile, int bufferSize) throws IOException {
+        Path parent = journalFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(
+                journalFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        );
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 4 * MAX_FIXED_RECORD_SIZE));
+        this.startMillis = System.currentTimeMillis();
+        buffer.put(MAGIC);
+        buffer.putLong(startMillis);
+    }
+
+    /**
+     * Records that the given entry is being extracted below {@code parent}.
+     *
+     * @return node id of the entry
+     */
+    synchronized int enter(int parent, FileType fileType, SourceEntry entry) {
+        int nameId = nameId(entry.name());
+        int node = ++lastNode;
+        ensureRemaining(MAX_FIXED_RECORD_SIZE);
+        buffer.put(ENTER);
+        putVarLong(node);
+        putVarLong(parent);
+        buffer.put((byte) fileType.ordinal());
+        putVarLong(nameId);
+        putVarLong(entry.ordinal());
+        putSignedVarLong(entry.offset());
+        putSignedVarLong(entry.size());
+        putVarLong(elapsedMillis());
+        return node;
+    }
+
+    synchronized void leave(int node, Outcome outcome) {
+        ensureRemaining(MAX_FIXED_RECORD_SIZE);
+        buffer.put(LEAVE);
+        putVarLong(node);
+        buffer.put((byte) outcome.ordinal());
+        putVarLong(elapsedMillis());
+    }
+
+    /**
+     * Records an entry which is not extracted.
+     */
+    synchronized void skip(int parent, FileType fileType, SourceEntry entry) {
+        leave(enter(parent, fileType, entry), Outcome.SKIPPED);
+    }
+
+    synchronized void output(int node, String fileName) {
+        ensureRemaining(MAX_FIXED_RECORD_SIZE);
+        buffer.put(OUTPUT);
+        putVarLong(node);
+        putString(fileName);
+    }
+
+    synchronized void rename(String fileName, String newFileName) {
+        ensureRemaining(1);
+        buffer.put(RENAME);
+        putString(fileName);
+        putString(newFileName);
+    }
+
+    synchronized void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int nameId(String name) {
+        if (name == null) {
+            return 0;
+        }
+        Integer id = nameIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        int newId = nameIds.size() + 1;
+        nameIds.put(name, newId);
+        ensureRemaining(MAX_FIXED_RECORD_SIZE);
+        buffer.put(NAME);
+        putVarLong(newId);
+        putString(name);
+        return newId;
+    }
+
+    private long elapsedMillis() {
+        return Math.max(0, System.currentTimeMillis() - startMillis);
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write extraction journal", e);
+            }
+        }
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(10);
+        putVarLong(bytes.length);
+        int written = 0;
+        while (written < bytes.length) {
+            ensureRemaining(1);
+            int count = Math.min(buffer.remaining(), bytes.length - written);
+            buffer.put(bytes, written, count);
+            written += count;
+        }
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putSignedVarLong(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+}
@@ -0,0 +1,252 @@
+package org.example.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Record of the extraction paths already processed, so an interrupted or repeated run can skip them.
+ * Each line is either
+ * <pre>
+ * DONE    key
+ * OUTPUT  key  output file
+ * </pre>
+ * with tab separated fields. Keys are built from the {@link SourceEntry} identities along the path, so
+ * a changed entry gets a new key and is extracted again. A container is recorded as done only when
+ * nothing below it failed.
+ */
+class ExtractionManifest implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(ExtractionManifest.class);
+
+    private static final String DONE = "DONE";
+    private static final String OUTPUT = "OUTPUT";
+    private static final String SEPARATOR = "\t";
+
+    private final Set<String> completedKeys = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> failedKeys = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> recordedOutputs = ConcurrentHashMap.newKeySet();
+
+    private final boolean writeThrough;
+
+    private final Function<File, String> outputNames;
+
+    private final BufferedWriter writer;
+
+    private final List<String> pendingKeys = new ArrayList<>();
+
+    private final Map<File, String> pendingOutputs = new ConcurrentHashMap<>();
+
+    /**
+     * @param resume       keep the records of previous runs, otherwise the manifest starts empty
+     * @param writeThrough append every record as soon as it is known. Otherwise records are kept until
+     *                     {@link #flush()}, for runs where writes complete after the traversal moved on.
+     * @param outputNames  name recorded for an output file
+     */
+    ExtractionManifest(
+            Path manifestFile,
+            boolean resume,
+            boolean writeThrough,
+            Function<File, String> outputNames
+    ) throws IOException {
+        this.writeThrough = writeThrough;
+        this.outputNames = outputNames;
+        if (!resume) {
+            Files.deleteIfExists(manifestFile);
+        } else if (Files.exists(manifestFile)) {
+            load(manifestFile);
+        }
+        Path parent = manifestFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.writer = Files.newBufferedWriter(
+                manifestFile,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND
+        );
+    }
+
+    /**
+     * True if a previous run completed the given path.
+     */
+    boolean isCompleted(String key) {
+        return completedKeys.contains(key);
+    }
+
+    /**
+     * True if a previous run recorded the output file with the given name as complete.
+     */
+    boolean isRecordedOutput(String fileName) {
+        return recordedOutputs.contains(fileName);
+    }
+
+    void markFailed(String key) {
+        failedKeys.add(key);
+    }
+
+    void markCompleted(String key) throws IOException {
+        if (hasFailedBelow(key)) {
+            log.debug("Not recording incomplete path : " + key);
+            return;
+        }
+        if (writeThrough) {
+            append(DONE + SEPARATOR + escape(key));
+        } else {
+            synchronized (pendingKeys) {
+                pendingKeys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Wraps the stream writing the email at {@code key}, the output is recorded once the email is committed.
+     */
+    EmailOutputStream wrap(EmailOutputStream out, String key, Supplier<File> outputFile) {
+        return new EmailOutputStream(out) {
+            @Override
+            protected void committed() throws IOException {
+                recordOutput(key, outputFile.get());
+            }
+        };
+    }
+
+    void recordOutput(String key, File outputFile) throws IOException {
+        if (outputFile == null) {
+            // dropped duplicate
+            return;
+        }
+        if (writeThrough) {
+            append(OUTPUT + SEPARATOR + escape(key) + SEPARATOR + escape(outputNames.apply(outputFile)));
+        } else {
+            pendingOutputs.put(outputFile, key);
+        }
+    }
+
+    /**
+     * Updates a recorded output after the file was renamed.
+     */
+    void relocate(File from, File to) {
+        String key = pendingOutputs.remove(from);
+        if (key != null) {
+            pendingOutputs.put(to, key);
+        }
+    }
+
+    /**
+     * Appends the pending records.
+     */
+    void flush() throws IOException {
+        synchronized (pendingKeys) {
+            for (Map.Entry<File, String> entry : pendingOutputs.entrySet()) {
+                if (!entry.getKey().exists()) {
+                    // dropped duplicate
+                    continue;
+                }
+                writeLine(OUTPUT + SEPARATOR + escape(entry.getValue()) + SEPARATOR + escape(outputNames.apply(entry.getKey())));
+            }
+            pendingOutputs.clear();
+            for (String key : pendingKeys) {
+                if (hasFailedBelow(key)) {
+                    // an email written after the path was completed failed
+                    log.debug("Not recording incomplete path : " + key);
+                    continue;
+                }
+                writeLine(DONE + SEPARATOR + escape(key));
+            }
+            pendingKeys.clear();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Closes the manifest, records not flushed are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private boolean hasFailedBelow(String key) {
+        if (failedKeys.isEmpty()) {
+            return false;
+        }
+        String prefix = key + "/";
+        for (String failedKey : failedKeys) {
+            if (failedKey.equals(key) || failedKey.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void append(String line) throws IOException {
+        synchronized (pendingKeys) {
+            writeLine(line);
+            // a crash must not lose records of files already written
+            writer.flush();
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+    }
+
+    private void load(Path manifestFile) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length >= 2 && DONE.equals(fields[0])) {
+                    completedKeys.add(unescape(fields[1]));
+                } else if (fields.length >= 3 && OUTPUT.equals(fields[0])) {
+                    recordedOutputs.add(unescape(fields[2]));
+                }
+            }
+        }
+        log.info("Loaded " + completedKeys.size() + " completed entries from manifest : " + manifestFile);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(switch (next) {
+                    case 't' -> '\t';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    default -> next;
+                });
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,514 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counters and per stage timings of an extraction. Stages nest, reading an attachment reads the
+ * enclosing email which inflates the enclosing zip entry, so every stage is charged only the time not
+ * spent in the stages it calls.
+ */
+class ExtractionMetrics implements ExtractionMetricsMXBean {
+
+    private static final Logger log = LogManager.getLogger(ExtractionMetrics.class);
+
+    private static final String OBJECT_NAME = "org.example:type=ExtractionMetrics";
+
+    /**
+     * Time spent in the nested stages of the stage currently running on the thread.
+     */
+    private static final ThreadLocal<long[]> NESTED_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    enum Stage {
+        /**
+         * Reading archive entries, including decompression.
+         */
+        ZIP_INFLATE,
+        /**
+         * Parsing email headers and structure.
+         */
+        MIME_PARSE,
+        /**
+         * Decoding attachments (base64, quoted-printable).
+         */
+        ATTACHMENT_DECODE,
+        /**
+         * Writing extracted emails.
+         */
+        OUTPUT_WRITE
+    }
+
+    private final Map<Stage, StageMetrics> stages = new EnumMap<>(Stage.class);
+
+    private final LongAdder archives = new LongAdder();
+
+    private final LongAdder entries = new LongAdder();
+
+    private final LongAdder filteredEntries = new LongAdder();
+
+    private final LongAdder quotaExceeded = new LongAdder();
+
+    private final LongAdder indexedEmails = new LongAdder();
+
+    private final LongAdder compressedBytes = new LongAdder();
+
+    private final LongAdder messages = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final AtomicLong expectedInputBytes = new AtomicLong();
+
+    private final LongAdder processedInputBytes = new LongAdder();
+
+    private volatile LongSupplier trackedInput;
+
+    private final long startNanos = System.nanoTime();
+
+    private ScheduledExecutorService progressReporter;
+
+    private ObjectName objectName;
+
+    private final BufferPool bufferPool;
+
+    ExtractionMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param bufferPool pool whose hits and misses are reported, null when there is none
+     */
+    ExtractionMetrics(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageMetrics());
+        }
+    }
+
+    /**
+     * Times one unit of work of a stage, possibly in several slices. Not thread safe, every thread
+     * needs its own timer.
+     */
+    class StageTimer {
+
+        private final Stage stage;
+
+        private long nanos;
+
+        private long sliceStart;
+
+        private long savedNestedNanos;
+
+        private long[] nestedNanos;
+
+        private StageTimer(Stage stage) {
+            this.stage = stage;
+        }
+
+        void start() {
+            nestedNanos = NESTED_NANOS.get();
+            savedNestedNanos = nestedNanos[0];
+            nestedNanos[0] = 0;
+            sliceStart = System.nanoTime();
+        }
+
+        void stop() {
+            long elapsed = System.nanoTime() - sliceStart;
+            nanos += elapsed - nestedNanos[0];
+            // the enclosing stage sees the whole slice as nested time
+            nestedNanos[0] = savedNestedNanos + elapsed;
+        }
+
+        void finish(long bytes) {
+            stages.get(stage).record(nanos, bytes);
+        }
+    }
+
+    StageTimer timer(Stage stage) {
+        return new StageTimer(stage);
+    }
+
+    InputStream meter(Stage stage, InputStream in) {
+        return new MeteredInputStream(in, new StageTimer(stage));
+    }
+
+    OutputStream meter(Stage stage, OutputStream out) {
+        return new MeteredOutputStream(out, new StageTimer(stage));
+    }
+
+    void archiveOpened() {
+        archives.increment();
+    }
+
+    void entryFound() {
+        entries.increment();
+    }
+
+    /**
+     * An archive entry left out by the entry filter, its data is not read.
+     */
+    void entryFiltered() {
+        filteredEntries.increment();
+    }
+
+    /**
+     * An email or archive entry stopped by the extraction quota.
+     */
+    void quotaExceeded() {
+        quotaExceeded.increment();
+    }
+
+    /**
+     * An email recorded in the header index instead of being written.
+     */
+    void emailIndexed() {
+        indexedEmails.increment();
+    }
+
+    /**
+     * Bytes written to the output files once the emails are compressed.
+     */
+    void compressedBytesWritten(long bytes) {
+        compressedBytes.add(bytes);
+    }
+
+    void messageParsed() {
+        messages.increment();
+    }
+
+    void errorOccurred() {
+        errors.increment();
+    }
+
+    /**
+     * Adds to the number of input bytes the run is expected to process, used for the completion estimate.
+     */
+    void expectInput(long bytes) {
+        expectedInputBytes.addAndGet(bytes);
+    }
+
+    void inputProcessed(long bytes) {
+        processedInputBytes.add(bytes);
+    }
+
+    /**
+     * Counts the bytes given by {@code position} as processed until {@link #untrackInput(long)}.
+     */
+    void trackInput(LongSupplier position) {
+        trackedInput = position;
+    }
+
+    void untrackInput(long processedBytes) {
+        trackedInput = null;
+        processedInputBytes.add(processedBytes);
+    }
+
+    private long getProcessedInputBytes() {
+        LongSupplier tracked = trackedInput;
+        return processedInputBytes.sum() + (tracked == null ? 0 : tracked.getAsLong());
+    }
+
+    /**
+     * Logs the progress every {@code intervalSeconds} until {@link #stopProgress()} is called.
+     */
+    void startProgress(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        progressReporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressReporter.scheduleAtFixedRate(
+                () -> log.info("PROGRESS : " + describeProgress()),
+                intervalSeconds,
+                intervalSeconds,
+                TimeUnit.SECONDS
+        );
+    }
+
+    void stopProgress() {
+        if (progressReporter != null) {
+            progressReporter.shutdownNow();
+            progressReporter = null;
+        }
+    }
+
+    void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            log.warn("Cannot register metrics MBean : " + e.getMessage());
+        }
+    }
+
+    void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.debug("Cannot unregister metrics MBean : " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    String describeProgress() {
+        StringBuilder sb = new StringBuilder();
+        double percent = getProgressPercent();
+        if (percent >= 0) {
+            sb.append(String.format("%.1f%% of %s, ", percent, FileUtils.byteCountToDisplaySize(expectedInputBytes.get())));
+        }
+        sb.append(getEmailsWritten()).append(" emails, ");
+        sb.append(FileUtils.byteCountToDisplaySize(getBytesWritten())).append(" written, ");
+        sb.append(FileUtils.byteCountToDisplaySize((long) getWriteBytesPerSecond())).append("/s");
+        long eta = getEtaSeconds();
+        if (eta >= 0) {
+            sb.append(String.format(", ETA %d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+        }
+        return sb.toString();
+    }
+
+    void logSummary() {
+        log.info("Extraction finished : " + describeProgress());
+        for (Map.Entry<Stage, StageMetrics> entry : stages.entrySet()) {
+            StageMetrics stage = entry.getValue();
+            log.info(String.format(
+                    "%s : %d calls, %s in %d ms, p50 %d us, p99 %d us",
+                    entry.getKey(),
+                    stage.histogram.getCount(),
+                    FileUtils.byteCountToDisplaySize(stage.bytes.sum()),
+                    TimeUnit.NANOSECONDS.toMillis(stage.nanos.sum()),
+                    TimeUnit.NANOSECONDS.toMicros(stage.histogram.getPercentile(50)),
+                    TimeUnit.NANOSECONDS.toMicros(stage.histogram.getPercentile(99))
+            ));
+        }
+        if (filteredEntries.sum() > 0) {
+            log.info("Entries filtered out : " + filteredEntries.sum());
+        }
+        if (indexedEmails.sum() > 0) {
+            log.info("Emails indexed : " + indexedEmails.sum());
+        }
+        if (compressedBytes.sum() > 0) {
+            log.info("Compressed output : " + FileUtils.byteCountToDisplaySize(compressedBytes.sum())
+                    + String.format(", %.1f%% of the emails", 100.0 * compressedBytes.sum() / Math.max(1, getBytesWritten())));
+        }
+        if (quotaExceeded.sum() > 0) {
+            log.warn("Entries stopped by the quota : " + quotaExceeded.sum());
+        }
+        if (bufferPool != null) {
+            log.info("Buffer pool : " + bufferPool.describe());
+        }
+    }
+
+    /**
+     * Writes the metrics as a JSON document.
+     */
+    void writeReport(Path reportFile, boolean completed) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"completed\": ").append(completed).append(",\n");
+        json.append("  \"durationMillis\": ").append(getElapsedMillis()).append(",\n");
+        json.append("  \"archives\": ").append(archives.sum()).append(",\n");
+        json.append("  \"entries\": ").append(entries.sum()).append(",\n");
+        json.append("  \"filteredEntries\": ").append(filteredEntries.sum()).append(",\n");
+        json.append("  \"quotaExceeded\": ").append(quotaExceeded.sum()).append(",\n");
+        json.append("  \"messages\": ").append(messages.sum()).append(",\n");
+        json.append("  \"emailsWritten\": ").append(getEmailsWritten()).append(",\n");
+        json.append("  \"emailsIndexed\": ").append(indexedEmails.sum()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(getBytesWritten()).append(",\n");
+        json.append("  \"compressedBytesWritten\": ").append(compressedBytes.sum()).append(",\n");
+        json.append("  \"errors\": ").append(errors.sum()).append(",\n");
+        json.append("  \"expectedInputBytes\": ").append(expectedInputBytes.get()).append(",\n");
+        json.append("  \"processedInputBytes\": ").append(getProcessedInputBytes()).append(",\n");
+        json.append("  \"stages\": {");
+        boolean first = true;
+        for (Map.Entry<Stage, StageMetrics> entry : stages.entrySet()) {
+            StageMetrics stage = entry.getValue();
+            LatencyHistogram histogram = stage.histogram;
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("    \"").append(entry.getKey()).append("\": {\n");
+            json.append("      \"count\": ").append(histogram.getCount()).append(",\n");
+            json.append("      \"bytes\": ").append(stage.bytes.sum()).append(",\n");
+            json.append("      \"nanos\": ").append(stage.nanos.sum()).append(",\n");
+            json.append("      \"bytesPerSecond\": ").append(Math.round(stage.getBytesPerSecond())).append(",\n");
+            json.append("      \"latencyMicros\": {");
+            json.append("\"p50\": ").append(TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(50)));
+            json.append(", \"p90\": ").append(TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(90)));
+            json.append(", \"p99\": ").append(TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99)));
+            json.append(", \"max\": ").append(TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+            json.append("}\n");
+            json.append("    }");
+        }
+        json.append("\n  }");
+        if (bufferPool != null) {
+            json.append(",\n  \"bufferPool\": {\n");
+            json.append("    \"bufferSize\": ").append(bufferPool.getBufferSize()).append(",\n");
+            json.append("    \"direct\": ").append(bufferPool.isDirect()).append(",\n");
+            json.append("    \"hits\": ").append(bufferPool.getHits()).append(",\n");
+            json.append("    \"misses\": ").append(bufferPool.getMisses()).append(",\n");
+            json.append("    \"discarded\": ").append(bufferPool.getDiscarded()).append("\n");
+            json.append("  }");
+        }
+        json.append("\n");
+        json.append("}\n");
+
+        Path parent = reportFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(reportFile, json, StandardCharsets.UTF_8);
+        log.info("Metrics written to : " + reportFile);
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getArchives() {
+        return archives.sum();
+    }
+
+    @Override
+    public long getEntries() {
+        return entries.sum();
+    }
+
+    @Override
+    public long getFilteredEntries() {
+        return filteredEntries.sum();
+    }
+
+    @Override
+    public long getQuotaExceeded() {
+        return quotaExceeded.sum();
+    }
+
+    @Override
+    public long getEmailsIndexed() {
+        return indexedEmails.sum();
+    }
+
+    @Override
+    public long getEmailsWritten() {
+        // every written email is one output stream, timed once
+        return stages.get(Stage.OUTPUT_WRITE).histogram.getCount();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return stages.get(Stage.OUTPUT_WRITE).bytes.sum();
+    }
+
+    @Override
+    public long getCompressedBytesWritten() {
+        return compressedBytes.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getWriteBytesPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed == 0 ? 0 : getBytesWritten() * 1e9 / elapsed;
+    }
+
+    @Override
+    public double getProgressPercent() {
+        long expected = expectedInputBytes.get();
+        if (expected <= 0) {
+            return -1;
+        }
+        return Math.min(100.0, 100.0 * getProcessedInputBytes() / expected);
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        long expected = expectedInputBytes.get();
+        long processed = getProcessedInputBytes();
+        if (expected <= 0 || processed <= 0) {
+            return -1;
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        return TimeUnit.NANOSECONDS.toSeconds((long) (elapsed * (double) Math.max(0, expected - processed) / processed));
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return bufferPool == null ? 0 : bufferPool.getHits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return bufferPool == null ? 0 : bufferPool.getMisses();
+    }
+
+    @Override
+    public Map<String, Long> getStageBytes() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        stages.forEach((stage, metrics) -> result.put(stage.name(), metrics.bytes.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageMillis() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        stages.forEach((stage, metrics) -> result.put(stage.name(), TimeUnit.NANOSECONDS.toMillis(metrics.nanos.sum())));
+        return result;
+    }
+
+    private static class StageMetrics {
+
+        private final LongAdder bytes = new LongAdder();
+
+        private final LongAdder nanos = new LongAdder();
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        void record(long nanos, long bytes) {
+            this.nanos.add(nanos);
+            this.bytes.add(bytes);
+            histogram.record(nanos);
+        }
+
+        double getBytesPerSecond() {
+            long total = nanos.sum();
+            return total == 0 ? 0 : bytes.sum() * 1e9 / total;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.example.impl;
+
+import java.util.Map;
+
+/**
+ * Metrics of the running extraction, published over JMX with {@code --jmx}.
+ */
+public interface ExtractionMetricsMXBean {
+
+    long getElapsedMillis();
+
+    long getArchives();
+
+    long getEntries();
+
+    long getFilteredEntries();
+
+    long getQuotaExceeded();
+
+    long getEmailsWritten();
+
+    long getEmailsIndexed();
+
+    long getBytesWritten();
+
+    long getCompressedBytesWritten();
+
+    long getErrors();
+
+    double getWriteBytesPerSecond();
+
+    /**
+     * Percentage of the expected input processed so far, -1 when the input size is unknown.
+     */
+    double getProgressPercent();
+
+    /**
+     * Estimated seconds until completion, -1 when unknown.
+     */
+    long getEtaSeconds();
+
+    /**
+     * I/O buffers reused from the pool.
+     */
+    long getBufferPoolHits();
+
+    /**
+     * I/O buffers allocated because the pool had none free.
+     */
+    long getBufferPoolMisses();
+
+    Map<String, Long> getStageBytes();
+
+    Map<String, Long> getStageMillis();
+}
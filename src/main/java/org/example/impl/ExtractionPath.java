@@ -6,26 +6,86 @@ import java.util.Iterator;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.example.FileType;
 
 class ExtractionPath {
 
     private static final Logger log = LogManager.getLogger(ExtractionPath.class);
 
-    private ArrayDeque<String> currentExtractionPath = new ArrayDeque<>();
+    private record Segment(FileType fileType, SourceEntry entry, int node) {
+    }
+
+    private final ArrayDeque<Segment> currentExtractionPath;
+
+    private final ExtractionJournal journal;
+
+    ExtractionPath() {
+        this(null);
+    }
+
+    /**
+     * @param journal records every entry entered and left, null to record nothing
+     */
+    ExtractionPath(ExtractionJournal journal) {
+        this(new ArrayDeque<>(), journal);
+    }
 
-    Closeable pushZip(String name) {
-        currentExtractionPath.push("ZIP:" + name);
-        log.info("PROCESSING: " + toSingleLine());
-        return this::pop;
+    private ExtractionPath(ArrayDeque<Segment> currentExtractionPath, ExtractionJournal journal) {
+        this.currentExtractionPath = currentExtractionPath;
+        this.journal = journal;
     }
 
-    Closeable pushEml(String name) {
-        currentExtractionPath.push("EML:" + name);
-        log.info("PROCESSING: " + toSingleLine());
-        return this::pop;
+    /**
+     * Independent copy of the current path, for a subtree processed by another task.
+     */
+    ExtractionPath copy() {
+        return new ExtractionPath(currentExtractionPath.clone(), journal);
+    }
+
+    Scope pushZip(SourceEntry entry) {
+        return push(FileType.ZIP, entry);
+    }
+
+    Scope pushEml(SourceEntry entry) {
+        return push(FileType.EML, entry);
+    }
+
+    Scope push(FileType fileType, SourceEntry entry) {
+        int node = journal == null ? 0 : journal.enter(currentNode(), fileType, entry);
+        currentExtractionPath.push(new Segment(fileType, entry, node));
+        if (log.isDebugEnabled()) {
+            log.debug("PROCESSING: " + toSingleLine());
+        }
+        return new Scope(node);
     }
 
-    private String pop() {
+    /**
+     * Records an entry of the current container which is not extracted.
+     */
+    void skip(FileType fileType, SourceEntry entry) {
+        if (journal != null) {
+            journal.skip(currentNode(), fileType, entry);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("SKIPPING: " + toSingleLine() + " -> " + fileType + ":" + entry.name());
+        }
+    }
+
+    /**
+     * Records the file the current email is written to.
+     */
+    void output(String fileName) {
+        if (journal != null) {
+            journal.output(currentNode(), fileName);
+        }
+    }
+
+    private int currentNode() {
+        Segment current = currentExtractionPath.peek();
+        return current == null ? 0 : current.node();
+    }
+
+    private Segment pop() {
         return currentExtractionPath.pop();
     }
 
@@ -33,17 +93,98 @@ class ExtractionPath {
         return currentExtractionPath.isEmpty();
     }
 
-    private String toSingleLine() {
+    /**
+     * Position of every segment among its siblings, from the root. Sorting these keys gives the order
+     * of a sequential depth-first extraction.
+     */
+    int[] toOrdinals() {
+        int[] ordinals = new int[currentExtractionPath.size()];
+        int i = 0;
+        Iterator<Segment> iterator = currentExtractionPath.descendingIterator();
+        while (iterator.hasNext()) {
+            ordinals[i++] = iterator.next().entry().ordinal();
+        }
+        return ordinals;
+    }
+
+    /**
+     * Stable identifier of the current position, built from the identities of all the entries on the path.
+     */
+    String toKey() {
         StringBuilder sb = new StringBuilder();
-        Iterator<String> iterator = currentExtractionPath.descendingIterator();
+        Iterator<Segment> iterator = currentExtractionPath.descendingIterator();
+        while (iterator.hasNext()) {
+            sb.append('/').append(iterator.next().entry().identity());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Names and positions of the entries on the path. Unlike {@link #toKey()} it does not depend on what
+     * the zip reader knows of an entry, so it is the same for every run over the same input.
+     */
+    String toNameKey() {
+        StringBuilder sb = new StringBuilder();
+        Iterator<Segment> iterator = currentExtractionPath.descendingIterator();
+        while (iterator.hasNext()) {
+            SourceEntry entry = iterator.next().entry();
+            sb.append('/');
+            if (entry.name() != null) {
+                sb.append(entry.name());
+            }
+            sb.append('#').append(entry.ordinal());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Key the given entry will have once pushed on the current path.
+     */
+    String keyOf(SourceEntry entry) {
+        return toKey() + "/" + entry.identity();
+    }
+
+    String toSingleLine() {
+        StringBuilder sb = new StringBuilder();
+        Iterator<Segment> iterator = currentExtractionPath.descendingIterator();
         boolean first = true;
         while (iterator.hasNext()) {
             if (!first) {
                 sb.append(" -> ");
             }
             first = false;
-            sb.append(iterator.next());
+            Segment segment = iterator.next();
+            SourceEntry entry = segment.entry();
+            // emails of an mbox and attachments may have no name, their position tells them apart
+            sb.append(segment.fileType()).append(':').append(entry.name() != null ? entry.name() : "#" + entry.ordinal());
         }
         return sb.toString();
     }
+
+    /**
+     * Entry pushed on the path, removed when closed. The entry is recorded as failed unless
+     * {@link #complete()} was called before.
+     */
+    class Scope implements Closeable {
+
+        private final int node;
+
+        private boolean completed = false;
+
+        private Scope(int node) {
+            this.node = node;
+        }
+
+        void complete() {
+            completed = true;
+        }
+
+        @Override
+        public void close() {
+            pop();
+            if (journal != null) {
+                journal.leave(node, completed ? ExtractionJournal.Outcome.COMPLETED : ExtractionJournal.Outcome.FAILED);
+            }
+        }
+    }
 }
@@ -0,0 +1,317 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.example.FileType;
+
+/**
+ * Estimates what an extraction yields at each level without extracting anything: zip central directories,
+ * tar headers and mbox separator lines are read, email headers are scanned, no payload is inflated or decoded.
+ * <p>
+ * A container is looked into only when its bytes can be read as they are: a stored zip entry or a tar entry,
+ * at any depth. Compressed entries, gzip files, nested mbox files and attachments, which are encoded, are
+ * counted but not looked into, the estimate of the levels below them is then a lower bound.
+ */
+class ExtractionPlanner implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(ExtractionPlanner.class);
+
+    private final List<FileType> fileTypes;
+
+    private final EntryFilter entryFilter;
+
+    private final BufferPool bufferPool;
+
+    private final ExtractionTaskRunner taskRunner;
+
+    private final Level[] levels;
+
+    /**
+     * What is known of the entries found at one level of the extraction.
+     */
+    private static class Level {
+
+        private long found = 0;
+
+        private long bytes = 0;
+
+        private long unknownSize = 0;
+
+        private long filtered = 0;
+
+        private long notPlanned = 0;
+
+        private long notPlannedBytes = 0;
+
+        private void found(long size) {
+            found++;
+            if (size >= 0) {
+                bytes += size;
+            } else {
+                unknownSize++;
+            }
+        }
+
+        private void notPlanned(long size) {
+            notPlanned++;
+            if (size > 0) {
+                notPlannedBytes += size;
+            }
+        }
+    }
+
+    /**
+     * Bytes of an entry as they are in its container, null if they cannot be read without inflating them.
+     */
+    private interface Content {
+        ByteBuffer get() throws IOException;
+    }
+
+    ExtractionPlanner(ExtractionSettings settings, List<FileType> fileTypes) {
+        this.fileTypes = List.copyOf(fileTypes);
+        this.entryFilter = new EntryFilter(
+                settings.getIncludes(),
+                settings.getExcludes(),
+                settings.getMinimumEntrySize(),
+                settings.getMaximumEntrySize(),
+                settings.getMaximumCompressionRatio()
+        );
+        this.bufferPool = new BufferPool(settings.getBufferSize(), settings.isDirectBuffers());
+        this.taskRunner = new ExtractionTaskRunner(settings.getThreads());
+        this.levels = new Level[fileTypes.size()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Level();
+        }
+    }
+
+    void plan(File inputFile) throws IOException, MessagingException {
+        log.debug("Planning extraction of : " + inputFile + " as : " + fileTypes);
+        // the mbox scan splits large files over the threads of the runner
+        taskRunner.run(() -> planInput(inputFile));
+    }
+
+    /**
+     * Prints the estimate, one line per level and the emails written in the end.
+     */
+    void print(PrintWriter out) {
+        boolean lowerBound = false;
+        for (int i = 0; i < levels.length; i++) {
+            Level level = levels[i];
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Level %d %-7s : %d found, %d bytes", i + 1, fileTypes.get(i), level.found, level.bytes));
+            if (level.unknownSize > 0) {
+                sb.append(", ").append(level.unknownSize).append(" of unknown size");
+            }
+            if (level.filtered > 0) {
+                sb.append(", ").append(level.filtered).append(" filtered out");
+            }
+            if (level.notPlanned > 0) {
+                sb.append(", ").append(level.notPlanned).append(" not looked into (")
+                        .append(level.notPlannedBytes).append(" bytes)");
+                lowerBound = true;
+            }
+            out.println(sb);
+        }
+        Level last = levels[levels.length - 1];
+        lowerBound |= last.unknownSize > 0;
+        out.println((lowerBound ? "Estimate, at least : " : "Estimate : ")
+                + last.found + " emails, " + last.bytes + " bytes written");
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        taskRunner.close();
+    }
+
+    private void planInput(File inputFile) throws IOException, MessagingException {
+        Level input = levels[0];
+        switch (fileTypes.get(0)) {
+            case MAILDIR -> {
+                input.found++;
+                List<File> messageFiles = Maildir.messageFiles(inputFile);
+                for (File messageFile : messageFiles) {
+                    planEntry(1, messageFile.length(), () -> map(messageFile));
+                }
+            }
+            case ZIP -> {
+                input.found(inputFile.length());
+                try (ZipCentralDirectory centralDirectory = ZipCentralDirectory.open(inputFile, bufferPool)) {
+                    planZip(centralDirectory, 0);
+                }
+            }
+            case MBOX -> {
+                input.found(inputFile.length());
+                try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+                    for (MboxIndex.Message message : MboxIndex.scan(channel, taskRunner)) {
+                        // quoted "From " lines are left quoted, they make no difference to the headers
+                        planEntry(1, message.length(), () -> map(channel, message.contentStart(), message.length()));
+                    }
+                }
+            }
+            case TAR -> {
+                input.found(inputFile.length());
+                try (
+                        FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                        FileRangeInputStream inputStream = new FileRangeInputStream(channel, 0, channel.size(), bufferPool)
+                ) {
+                    planTar(inputStream, (offset, length) -> map(channel, offset, length), 0);
+                }
+            }
+            case EML -> {
+                input.found(inputFile.length());
+                if (levels.length > 1) {
+                    try (InputStream inputStream = Files.newInputStream(inputFile.toPath())) {
+                        planEml(inputStream, 0);
+                    }
+                }
+            }
+            case GZ -> {
+                input.found(inputFile.length());
+                input.notPlanned(inputFile.length());
+            }
+            default -> throw new IllegalArgumentException("Unsupported file type : " + fileTypes.get(0));
+        }
+    }
+
+    /**
+     * Counts an entry at the given level, and looks into it unless it is an email to be written.
+     */
+    private void planEntry(int level, long size, Content content) {
+        Level current = levels[level];
+        current.found(size);
+        if (level == levels.length - 1) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = content.get();
+            if (buffer == null) {
+                current.notPlanned(size);
+                return;
+            }
+            planContent(level, buffer);
+        } catch (IOException | MessagingException e) {
+            log.warn("Cannot plan the extraction of an entry : " + e.getMessage());
+            current.notPlanned(size);
+        }
+    }
+
+    private void planContent(int level, ByteBuffer content) throws IOException, MessagingException {
+        switch (fileTypes.get(level)) {
+            case ZIP -> {
+                try (ZipCentralDirectory centralDirectory = ZipCentralDirectory.open(content, bufferPool)) {
+                    planZip(centralDirectory, level);
+                }
+            }
+            case TAR -> planTar(
+                    new ByteBufferInputStream(content.duplicate()),
+                    (offset, length) -> slice(content, offset, length),
+                    level
+            );
+            case EML -> planEml(new ByteBufferInputStream(content), level);
+            // an mbox is scanned from a file, a gzip member must be inflated
+            case MBOX, GZ -> levels[level].notPlanned(content.remaining());
+            default -> throw new IllegalArgumentException("Unsupported file type : " + fileTypes.get(level));
+        }
+    }
+
+    private void planZip(ZipCentralDirectory centralDirectory, int level) {
+        for (ZipCentralDirectory.Entry entry : centralDirectory.getEntries()) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            if (entryFilter.reject(entry.name(), entry.size(), entry.compressedSize()) != null) {
+                levels[level + 1].filtered++;
+                continue;
+            }
+            planEntry(level + 1, entry.size(), () -> centralDirectory.getStoredContent(entry));
+        }
+    }
+
+    private interface Slicer {
+        ByteBuffer slice(long offset, long length) throws IOException;
+    }
+
+    private void planTar(InputStream inputStream, Slicer slicer, int level) throws IOException {
+        TarReader tarReader = new TarReader(inputStream);
+        TarReader.Entry entry;
+        while ((entry = tarReader.nextEntry()) != null) {
+            if (!entry.file()) {
+                continue;
+            }
+            if (entryFilter.reject(entry.name(), entry.size(), -1) != null) {
+                levels[level + 1].filtered++;
+                continue;
+            }
+            TarReader.Entry tarEntry = entry;
+            planEntry(level + 1, entry.size(), () -> slicer.slice(tarEntry.dataOffset(), tarEntry.size()));
+        }
+    }
+
+    /**
+     * Scans the headers of the email and of its parts, part content is skipped without being decoded.
+     */
+    private void planEml(InputStream inputStream, int level) throws IOException, MessagingException {
+        try (MimeStreamScanner scanner = new MimeStreamScanner(inputStream, bufferPool)) {
+            if (!scanner.isMimeType("multipart/*")) {
+                return;
+            }
+            FileType attachmentType = fileTypes.get(level + 1);
+            MimeStreamScanner.Part part;
+            while ((part = scanner.nextPart()) != null) {
+                if (isAttachment(part, attachmentType)) {
+                    // the size of an attachment is only known once it is decoded
+                    planEntry(level + 1, -1, () -> null);
+                }
+            }
+        }
+    }
+
+    private static boolean isAttachment(MimeStreamScanner.Part part, FileType fileType) {
+        return switch (fileType) {
+            case ZIP -> MessageUtils.isZip(part);
+            case EML -> MessageUtils.isMessage(part);
+            case MBOX -> MessageUtils.isMbox(part);
+            case TAR -> MessageUtils.isTar(part);
+            case GZ -> MessageUtils.isGzip(part);
+            default -> throw new IllegalArgumentException("Unsupported file type : " + fileType);
+        };
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return map(channel, 0, channel.size());
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            return null;
+        }
+        if (offset + length > channel.size()) {
+            throw new EOFException("Entry past the end of the file at : " + offset);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private static ByteBuffer slice(ByteBuffer content, long offset, long length) {
+        if (offset + length > content.limit()) {
+            return null;
+        }
+        return content.slice((int) offset, (int) length);
+    }
+}
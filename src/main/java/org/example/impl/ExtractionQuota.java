@@ -0,0 +1,224 @@
+package org.example.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits on what an extraction produces, shared by every thread: bytes written in total, bytes of a single
+ * email, and bytes inflated out of a single archive, along with the compression ratio of its entries.
+ * <p>
+ * Counters hold exactly the bytes let through. A charge is reserved with a compare-and-set and refused
+ * whole when it would go over the limit, so concurrent writers cannot overshoot it, and a refused charge
+ * throws a {@link QuotaExceededException} which stops the email or archive entry being read and nothing
+ * else. Declared sizes are checked before any byte is inflated, actual ones as the bytes flow.
+ */
+class ExtractionQuota {
+
+    /**
+     * Bytes inflated before the compression ratio of an entry is checked, the first blocks of an entry
+     * say little about it.
+     */
+    static final long RATIO_CHECK_THRESHOLD = 1024 * 1024;
+
+    private final ExtractionMetrics metrics;
+
+    private final Counter total;
+
+    private final Counter compressedTotal;
+
+    private final long archiveLimit;
+
+    private final long messageLimit;
+
+    private final double compressionRatioLimit;
+
+    /**
+     * @param totalLimit            bytes written in total, negative for no limit
+     * @param archiveLimit          bytes inflated out of the entries of one archive, negative for no limit
+     * @param messageLimit          bytes of one written email, negative for no limit
+     * @param compressionRatioLimit largest inflated to compressed size ratio of an entry, negative for no limit
+     */
+    ExtractionQuota(long totalLimit, long archiveLimit, long messageLimit, double compressionRatioLimit, ExtractionMetrics metrics) {
+        this.metrics = metrics;
+        this.total = new Counter("Total output size", totalLimit);
+        this.compressedTotal = new Counter("Total compressed output size", totalLimit);
+        this.archiveLimit = archiveLimit;
+        this.messageLimit = messageLimit;
+        this.compressionRatioLimit = compressionRatioLimit;
+    }
+
+    static ExtractionQuota ofTotal(long totalLimit, ExtractionMetrics metrics) {
+        return new ExtractionQuota(totalLimit, -1, -1, -1, metrics);
+    }
+
+    /**
+     * Counter of the bytes inflated out of a newly opened archive.
+     */
+    Counter openArchive() {
+        return new Counter("Archive size", archiveLimit);
+    }
+
+    /**
+     * Charges bytes about to be written to an email.
+     *
+     * @param written bytes of the email written so far
+     */
+    void chargeOutput(long written, long bytes) throws QuotaExceededException {
+        if (messageLimit >= 0 && written + bytes > messageLimit) {
+            throw exceeded("Email size exceeded : " + messageLimit);
+        }
+        total.charge(bytes);
+    }
+
+    /**
+     * Charges compressed bytes about to be written to a file, against a total of their own with the same limit as
+     * the total of the emails.
+     */
+    void chargeCompressed(long bytes) throws QuotaExceededException {
+        compressedTotal.charge(bytes);
+    }
+
+    /**
+     * Why an entry is refused from its declared size, before it is read, null if it may be read.
+     *
+     * @param size    declared inflated size, negative if unknown
+     * @param archive counter of the archive holding the entry
+     * @param written whether the entry is written out as it is, it then also counts as an email
+     */
+    String rejectDeclared(long size, Counter archive, boolean written) {
+        if (size < 0) {
+            return null;
+        }
+        String reason = null;
+        if (archive.exceeds(size)) {
+            reason = archive.describe();
+        } else if (written && messageLimit >= 0 && size > messageLimit) {
+            reason = "Email size exceeded : " + messageLimit;
+        } else if (written && total.exceeds(size)) {
+            reason = total.describe();
+        }
+        if (reason != null) {
+            metrics.quotaExceeded();
+        }
+        return reason;
+    }
+
+    /**
+     * Charges the bytes read from an archive entry to the archive, and checks the compression ratio once
+     * enough bytes were inflated.
+     *
+     * @param compressedBytes compressed bytes consumed so far, null for an entry which is not compressed
+     */
+    InputStream guardEntry(InputStream in, Counter archive, LongSupplier compressedBytes) throws QuotaExceededException {
+        if (in instanceof FileRangeInputStream range) {
+            // stored entry, its size is exact and it is charged whole, it may still be copied without reading
+            archive.charge(range.getLength());
+            return in;
+        }
+        if (archive.limit < 0 && (compressionRatioLimit < 0 || compressedBytes == null)) {
+            return in;
+        }
+        return new GuardedInputStream(in, archive, compressionRatioLimit >= 0 ? compressedBytes : null);
+    }
+
+    private QuotaExceededException exceeded(String reason) {
+        metrics.quotaExceeded();
+        return new QuotaExceededException(reason);
+    }
+
+    /**
+     * Bytes counted against a limit.
+     */
+    class Counter {
+
+        private final String name;
+
+        private final long limit;
+
+        private final AtomicLong used = new AtomicLong();
+
+        Counter(String name, long limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        void charge(long bytes) throws QuotaExceededException {
+            if (limit < 0) {
+                used.addAndGet(bytes);
+                return;
+            }
+            long current;
+            do {
+                current = used.get();
+                if (current + bytes > limit) {
+                    throw exceeded(describe());
+                }
+            } while (!used.compareAndSet(current, current + bytes));
+        }
+
+        boolean exceeds(long bytes) {
+            return limit >= 0 && used.get() + bytes > limit;
+        }
+
+        private String describe() {
+            return name + " exceeded : " + limit;
+        }
+    }
+
+    private class GuardedInputStream extends FilterInputStream {
+
+        private final Counter archive;
+
+        private final LongSupplier compressedBytes;
+
+        private long inflated = 0;
+
+        GuardedInputStream(InputStream in, Counter archive, LongSupplier compressedBytes) {
+            super(in);
+            this.archive = archive;
+            this.compressedBytes = compressedBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                charged(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) {
+                charged(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes are inflated all the same
+            long skipped = in.skip(n);
+            if (skipped > 0) {
+                charged(skipped);
+            }
+            return skipped;
+        }
+
+        private void charged(long count) throws QuotaExceededException {
+            archive.charge(count);
+            inflated += count;
+            if (compressedBytes != null && inflated >= RATIO_CHECK_THRESHOLD) {
+                long compressed = compressedBytes.getAsLong();
+                if (compressed > 0 && inflated > compressionRatioLimit * compressed) {
+                    throw exceeded("Compression ratio exceeded : " + inflated + " bytes inflated from " + compressed);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import picocli.CommandLine;
+
+/**
+ * Keeps the extraction engine running between extractions: classes are loaded and compiled once, and the
+ * buffer pool and extraction threads are shared by every job.
+ * <p>
+ * Jobs are submitted over HTTP on a local address. {@code POST /jobs} takes the arguments of an extraction,
+ * one per line, as they would be given to the extract command, and answers with the job. {@code GET /jobs}
+ * lists the jobs, {@code GET /jobs/<id>} gives one of them with its exit code and what it printed once done.
+ * {@code POST /shutdown} stops accepting jobs, those already accepted are run before the server exits.
+ * <p>
+ * A job reads and deletes files as the user running the server, so only local clients holding the token of the
+ * server are served: the server listens on a loopback address, every request has to carry the token in an
+ * {@code Authorization: Bearer} header, and requests sent by browsers, which carry an {@code Origin} header, are
+ * refused. Jobs are submitted as {@value #ARGUMENTS_CONTENT_TYPE}, which a web page cannot send to another site
+ * without its consent.
+ */
+@CommandLine.Command(
+        name = ExtractionServer.COMMAND,
+        mixinStandardHelpOptions = true,
+        description = "Run extraction jobs submitted over a local HTTP endpoint"
+)
+public class ExtractionServer implements Callable<Integer> {
+
+    public static final String COMMAND = "serve";
+
+    private static final Logger log = LogManager.getLogger(ExtractionServer.class);
+
+    private static final String JOBS_PATH = "/jobs";
+
+    static final String ARGUMENTS_CONTENT_TYPE = "application/x-extraction-arguments";
+
+    private static final String TOKEN_PREFIX = "Bearer ";
+
+    private static final int TOKEN_BYTES = 32;
+
+    /**
+     * Finished jobs kept for their status, older ones are forgotten.
+     */
+    private static final int RETAINED_JOBS = 1000;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    @CommandLine.Option(names = {"--bind"}, description = "Loopback address to listen on", required = false)
+    private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+
+    @CommandLine.Option(names = {"--token-file"}, description = "File to write the token of the server to, readable by its owner only, instead of printing it", required = false)
+    private Path tokenFile;
+
+    @CommandLine.Option(names = {"-p", "--port"}, description = "Port to listen on", required = false)
+    private int port = 8025;
+
+    @CommandLine.Option(names = {"-j", "--jobs"}, description = "Number of jobs run at the same time, the others wait their turn", required = false)
+    private int concurrentJobs = 4;
+
+    @CommandLine.Option(names = {"-t", "--threads"}, description = "Number of threads shared by the jobs to extract independent archive entries and attachments", required = false)
+    private int threads = 1;
+
+    @CommandLine.Option(names = {"-b", "--buffer"}, description = "Size of the buffers shared by the jobs when reading/writing files", required = false)
+    private int bufferSize = 8192;
+
+    @CommandLine.Option(names = {"--direct-buffers"}, description = "Allocate the shared file read buffers off heap", required = false)
+    private boolean directBuffers;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    private enum JobState {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private static class Job {
+
+        private final long id;
+
+        private final List<String> arguments;
+
+        private final long submittedMillis = System.currentTimeMillis();
+
+        private final StringWriter output = new StringWriter();
+
+        private volatile JobState state = JobState.QUEUED;
+
+        private volatile long startMillis = -1;
+
+        private volatile long endMillis = -1;
+
+        private volatile int exitCode;
+
+        private Job(long id, List<String> arguments) {
+            this.id = id;
+            this.arguments = arguments;
+        }
+
+        private boolean isFinished() {
+            return state == JobState.SUCCEEDED || state == JobState.FAILED;
+        }
+
+        private String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"id\":").append(id);
+            sb.append(",\"state\":\"").append(state).append('"');
+            sb.append(",\"arguments\":[");
+            for (int i = 0; i < arguments.size(); i++) {
+                sb.append(i == 0 ? "" : ",").append(JournalReader.quote(arguments.get(i)));
+            }
+            sb.append("],\"submittedMillis\":").append(submittedMillis);
+            sb.append(",\"startMillis\":").append(startMillis);
+            sb.append(",\"durationMillis\":").append(endMillis >= 0 ? endMillis - startMillis : -1);
+            if (isFinished()) {
+                sb.append(",\"exitCode\":").append(exitCode);
+                sb.append(",\"output\":").append(JournalReader.quote(output.toString()));
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    private final AtomicLong jobCounter = new AtomicLong();
+
+    private final Map<Long, Job> jobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Job> eldest) {
+            return size() > RETAINED_JOBS && eldest.getValue().isFinished();
+        }
+    };
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private BufferPool bufferPool;
+
+    private ExtractionTaskRunner taskRunner;
+
+    private ExecutorService jobExecutor;
+
+    private byte[] token;
+
+    @Override
+    public Integer call() throws IOException, InterruptedException {
+        if (concurrentJobs < 1) {
+            throw new IllegalArgumentException("Job count should be positive : " + concurrentJobs);
+        }
+        if (!bindAddress.isLoopbackAddress()) {
+            throw new IllegalArgumentException("Server can only listen on a loopback address : " + bindAddress.getHostAddress());
+        }
+        byte[] tokenBytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(tokenBytes);
+        String tokenText = HexFormat.of().formatHex(tokenBytes);
+        token = tokenText.getBytes(StandardCharsets.US_ASCII);
+        if (tokenFile != null) {
+            writeTokenFile(tokenText);
+        }
+        bufferPool = new BufferPool(bufferSize, directBuffers);
+        taskRunner = new ExtractionTaskRunner(threads);
+        jobExecutor = Executors.newFixedThreadPool(concurrentJobs, runnable -> {
+            Thread thread = new Thread(runnable, "extraction-job-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        HttpServer server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        try {
+            server.createContext(JOBS_PATH, this::handleJobs);
+            server.createContext("/shutdown", this::handleShutdown);
+            server.start();
+            PrintWriter out = spec.commandLine().getOut();
+            out.println("Listening on http://" + bindAddress.getHostAddress() + ":" + server.getAddress().getPort() + JOBS_PATH);
+            if (tokenFile == null) {
+                out.println("Token : " + tokenText);
+            }
+            out.flush();
+            stopped.await();
+        } finally {
+            server.stop(0);
+            jobExecutor.shutdown();
+            while (!jobExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for the running jobs to finish");
+            }
+            taskRunner.close();
+        }
+        log.info("Server stopped after " + jobCounter.get() + " jobs");
+        return 0;
+    }
+
+    private void writeTokenFile(String tokenText) throws IOException {
+        Files.deleteIfExists(tokenFile);
+        try {
+            // restricted as it is created, the token is never readable by others even before it is written
+            Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)
+            ));
+        } catch (UnsupportedOperationException e) {
+            log.warn("Cannot restrict the token file to its owner : " + tokenFile);
+            Files.createFile(tokenFile);
+        }
+        Files.writeString(tokenFile, tokenText, StandardCharsets.US_ASCII, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Whether the request may be served, it is answered when not.
+     */
+    private boolean authorize(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            respond(exchange, 403, "{\"error\":\"Requests from browsers are not served\"}");
+            return false;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith(TOKEN_PREFIX) || !MessageDigest.isEqual(token,
+                authorization.substring(TOKEN_PREFIX.length()).strip().getBytes(StandardCharsets.US_ASCII))) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            respond(exchange, 401, "{\"error\":\"Missing or wrong token\"}");
+            return false;
+        }
+        return true;
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!authorize(exchange)) {
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals(JOBS_PATH) || path.equals(JOBS_PATH + "/")) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else if (method.equals("GET")) {
+                    List<String> listed = new ArrayList<>();
+                    synchronized (jobs) {
+                        for (Job job : jobs.values()) {
+                            listed.add(job.toJson());
+                        }
+                    }
+                    respond(exchange, 200, "[" + String.join(",", listed) + "]");
+                } else {
+                    respond(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                }
+                return;
+            }
+            Job job = null;
+            try {
+                long id = Long.parseLong(path.substring(JOBS_PATH.length() + 1));
+                synchronized (jobs) {
+                    job = jobs.get(id);
+                }
+            } catch (NumberFormatException e) {
+                // not a job path
+            }
+            if (job == null) {
+                respond(exchange, 404, "{\"error\":\"No such job\"}");
+            } else if (!method.equals("GET")) {
+                respond(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            } else {
+                respond(exchange, 200, job.toJson());
+            }
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        if (stopped.getCount() == 0) {
+            respond(exchange, 503, "{\"error\":\"Shutting down\"}");
+            return;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.split(";", 2)[0].strip().equalsIgnoreCase(ARGUMENTS_CONTENT_TYPE)) {
+            respond(exchange, 415, "{\"error\":\"Arguments should be sent as " + ARGUMENTS_CONTENT_TYPE + "\"}");
+            return;
+        }
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        List<String> arguments = new ArrayList<>();
+        for (String line : body.split("\r?\n")) {
+            if (!line.isEmpty()) {
+                arguments.add(line);
+            }
+        }
+        Job job = new Job(jobCounter.incrementAndGet(), arguments);
+        try {
+            jobExecutor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            // stopped in the meantime
+            respond(exchange, 503, "{\"error\":\"Shutting down\"}");
+            return;
+        }
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+        log.info("Job " + job.id + " queued : " + arguments);
+        exchange.getResponseHeaders().set("Location", JOBS_PATH + "/" + job.id);
+        respond(exchange, 202, job.toJson());
+    }
+
+    private void run(Job job) {
+        job.startMillis = System.currentTimeMillis();
+        job.state = JobState.RUNNING;
+        PrintWriter output = new PrintWriter(job.output);
+        job.exitCode = -1;
+        try {
+            job.exitCode = new CommandLine(new ExtractMail(bufferPool, taskRunner))
+                    .setOut(output)
+                    .setErr(output)
+                    .execute(job.arguments.toArray(new String[0]));
+        } catch (RuntimeException e) {
+            // picocli reports failures of the command itself, this is a failure of picocli
+            log.error("Job " + job.id + " failed", e);
+        } finally {
+            output.flush();
+            job.endMillis = System.currentTimeMillis();
+            job.state = job.exitCode == 0 ? JobState.SUCCEEDED : JobState.FAILED;
+        }
+        log.info("Job " + job.id + " " + job.state + " in " + (job.endMillis - job.startMillis) + " ms, exit code : " + job.exitCode);
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!authorize(exchange)) {
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+            respond(exchange, 202, "{\"state\":\"STOPPING\"}");
+        }
+        stopped.countDown();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
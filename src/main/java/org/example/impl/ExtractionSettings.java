@@ -0,0 +1,396 @@
+package org.example.impl;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.example.DedupMode;
+import org.example.Durability;
+import org.example.MimeEngine;
+import org.example.OutputCompression;
+import org.example.OutputFormat;
+import org.example.OutputNaming;
+import org.example.ZipReadMode;
+
+/**
+ * Configuration of a {@link FileProcessor}, filled from the command line.
+ */
+class ExtractionSettings {
+
+    static final String DEFAULT_MANIFEST_NAME = ".extraction-manifest";
+
+    private Path outputPath = Paths.get("./output");
+
+    private OutputFormat outputFormat = OutputFormat.DIRECTORY;
+
+    private OutputNaming outputNaming = OutputNaming.SEQUENTIAL;
+
+    private OutputCompression outputCompression = OutputCompression.NONE;
+
+    private int compressionLevel = 6;
+
+    private Durability durability = Durability.NONE;
+
+    private int shardDepth = 2;
+
+    private int bufferSize = 8192;
+
+    private boolean directBuffers = false;
+
+    private long maximumOutputSize = FileUtils.ONE_GB;
+
+    private ZipReadMode zipReadMode = ZipReadMode.CENTRAL_DIRECTORY;
+
+    private ZipReadMode nestedZipReadMode = ZipReadMode.STREAM;
+
+    private long spoolThreshold = 16 * FileUtils.ONE_MB;
+
+    private Path spoolDirectory;
+
+    private int threads = 1;
+
+    private int writerThreads = 0;
+
+    private long inFlightLimit = 64 * FileUtils.ONE_MB;
+
+    private MimeEngine mimeEngine = MimeEngine.JAVAMAIL;
+
+    private DedupMode dedupMode = DedupMode.OFF;
+
+    private Path dedupIndex = null;
+
+    private boolean resume = false;
+
+    private Path manifestPath = null;
+
+    private int progressInterval = 10;
+
+    private Path metricsReport = null;
+
+    private boolean jmx = false;
+
+    private Path journalPath = null;
+
+    private List<String> includes = List.of();
+
+    private List<String> excludes = List.of();
+
+    private List<String> headerConditions = List.of();
+
+    private long minimumEntrySize = -1;
+
+    private long maximumEntrySize = -1;
+
+    private double maximumCompressionRatio = -1;
+
+    private long archiveLimit = -1;
+
+    private long messageLimit = -1;
+
+    Path getOutputPath() {
+        return outputPath;
+    }
+
+    ExtractionSettings outputPath(Path outputPath) {
+        this.outputPath = outputPath;
+        return this;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    ExtractionSettings bufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    ExtractionSettings directBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+        return this;
+    }
+
+    long getMaximumOutputSize() {
+        return maximumOutputSize;
+    }
+
+    ExtractionSettings maximumOutputSize(long maximumOutputSize) {
+        this.maximumOutputSize = maximumOutputSize;
+        return this;
+    }
+
+    ZipReadMode getZipReadMode() {
+        return zipReadMode;
+    }
+
+    ExtractionSettings zipReadMode(ZipReadMode zipReadMode) {
+        this.zipReadMode = zipReadMode;
+        return this;
+    }
+
+    ZipReadMode getNestedZipReadMode() {
+        return nestedZipReadMode;
+    }
+
+    ExtractionSettings nestedZipReadMode(ZipReadMode nestedZipReadMode) {
+        this.nestedZipReadMode = nestedZipReadMode;
+        return this;
+    }
+
+    long getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    ExtractionSettings spoolThreshold(long spoolThreshold) {
+        this.spoolThreshold = spoolThreshold;
+        return this;
+    }
+
+    Path getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    ExtractionSettings spoolDirectory(Path spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+        return this;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    ExtractionSettings threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    int getWriterThreads() {
+        return writerThreads;
+    }
+
+    ExtractionSettings writerThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+        return this;
+    }
+
+    long getInFlightLimit() {
+        return inFlightLimit;
+    }
+
+    ExtractionSettings inFlightLimit(long inFlightLimit) {
+        this.inFlightLimit = inFlightLimit;
+        return this;
+    }
+
+    MimeEngine getMimeEngine() {
+        return mimeEngine;
+    }
+
+    ExtractionSettings mimeEngine(MimeEngine mimeEngine) {
+        this.mimeEngine = mimeEngine;
+        return this;
+    }
+
+    DedupMode getDedupMode() {
+        return dedupMode;
+    }
+
+    ExtractionSettings dedupMode(DedupMode dedupMode) {
+        this.dedupMode = dedupMode;
+        return this;
+    }
+
+    Path getDedupIndex() {
+        return dedupIndex;
+    }
+
+    ExtractionSettings dedupIndex(Path dedupIndex) {
+        this.dedupIndex = dedupIndex;
+        return this;
+    }
+
+    boolean isResume() {
+        return resume;
+    }
+
+    ExtractionSettings resume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    Path getManifestPath() {
+        return manifestPath;
+    }
+
+    ExtractionSettings manifestPath(Path manifestPath) {
+        this.manifestPath = manifestPath;
+        return this;
+    }
+
+    int getProgressInterval() {
+        return progressInterval;
+    }
+
+    ExtractionSettings progressInterval(int progressInterval) {
+        this.progressInterval = progressInterval;
+        return this;
+    }
+
+    Path getMetricsReport() {
+        return metricsReport;
+    }
+
+    ExtractionSettings metricsReport(Path metricsReport) {
+        this.metricsReport = metricsReport;
+        return this;
+    }
+
+    boolean isJmx() {
+        return jmx;
+    }
+
+    ExtractionSettings jmx(boolean jmx) {
+        this.jmx = jmx;
+        return this;
+    }
+
+    Path getJournalPath() {
+        return journalPath;
+    }
+
+    ExtractionSettings journalPath(Path journalPath) {
+        this.journalPath = journalPath;
+        return this;
+    }
+
+    OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    ExtractionSettings outputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+        return this;
+    }
+
+    OutputNaming getOutputNaming() {
+        return outputNaming;
+    }
+
+    ExtractionSettings outputNaming(OutputNaming outputNaming) {
+        this.outputNaming = outputNaming;
+        return this;
+    }
+
+    OutputCompression getOutputCompression() {
+        return outputCompression;
+    }
+
+    ExtractionSettings outputCompression(OutputCompression outputCompression) {
+        this.outputCompression = outputCompression;
+        return this;
+    }
+
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    ExtractionSettings compressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    Durability getDurability() {
+        return durability;
+    }
+
+    ExtractionSettings durability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    int getShardDepth() {
+        return shardDepth;
+    }
+
+    ExtractionSettings shardDepth(int shardDepth) {
+        this.shardDepth = shardDepth;
+        return this;
+    }
+
+    List<String> getIncludes() {
+        return includes;
+    }
+
+    ExtractionSettings includes(List<String> includes) {
+        this.includes = includes;
+        return this;
+    }
+
+    List<String> getExcludes() {
+        return excludes;
+    }
+
+    ExtractionSettings excludes(List<String> excludes) {
+        this.excludes = excludes;
+        return this;
+    }
+
+    List<String> getHeaderConditions() {
+        return headerConditions;
+    }
+
+    ExtractionSettings headerConditions(List<String> headerConditions) {
+        this.headerConditions = headerConditions;
+        return this;
+    }
+
+    long getMinimumEntrySize() {
+        return minimumEntrySize;
+    }
+
+    ExtractionSettings minimumEntrySize(long minimumEntrySize) {
+        this.minimumEntrySize = minimumEntrySize;
+        return this;
+    }
+
+    long getMaximumEntrySize() {
+        return maximumEntrySize;
+    }
+
+    ExtractionSettings maximumEntrySize(long maximumEntrySize) {
+        this.maximumEntrySize = maximumEntrySize;
+        return this;
+    }
+
+    double getMaximumCompressionRatio() {
+        return maximumCompressionRatio;
+    }
+
+    ExtractionSettings maximumCompressionRatio(double maximumCompressionRatio) {
+        this.maximumCompressionRatio = maximumCompressionRatio;
+        return this;
+    }
+
+    long getArchiveLimit() {
+        return archiveLimit;
+    }
+
+    ExtractionSettings archiveLimit(long archiveLimit) {
+        this.archiveLimit = archiveLimit;
+        return this;
+    }
+
+    long getMessageLimit() {
+        return messageLimit;
+    }
+
+    ExtractionSettings messageLimit(long messageLimit) {
+        this.messageLimit = messageLimit;
+        return this;
+    }
+}
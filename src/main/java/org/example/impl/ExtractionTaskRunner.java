@@ -0,0 +1,127 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import javax.mail.MessagingException;
+
+/**
+ * Runs the independent subtrees of an extraction. With a single thread every task runs inline in
+ * submission order, otherwise tasks are forked into a work-stealing pool.
+ */
+class ExtractionTaskRunner implements Closeable {
+
+    interface ExtractionTask {
+        void run() throws IOException, MessagingException;
+    }
+
+    private final ForkJoinPool pool;
+
+    ExtractionTaskRunner(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count should be positive : " + threads);
+        }
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    boolean isParallel() {
+        return pool != null;
+    }
+
+    int getThreads() {
+        return pool != null ? pool.getParallelism() : 1;
+    }
+
+    void run(ExtractionTask task) throws IOException, MessagingException {
+        if (pool == null) {
+            task.run();
+            return;
+        }
+        try {
+            pool.invoke(new ExtractionAction(task));
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        }
+    }
+
+    void runAll(List<ExtractionTask> tasks) throws IOException, MessagingException {
+        if (pool == null || !ForkJoinTask.inForkJoinPool()) {
+            for (ExtractionTask task : tasks) {
+                task.run();
+            }
+            return;
+        }
+        List<ExtractionAction> actions = new ArrayList<>(tasks.size());
+        for (ExtractionTask task : tasks) {
+            actions.add(new ExtractionAction(task));
+        }
+        try {
+            ForkJoinTask.invokeAll(actions);
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static RuntimeException unwrap(RuntimeException e) throws IOException, MessagingException {
+        // the pool may wrap exceptions rethrown from another worker, look for the original one
+        Throwable cause = e;
+        while (cause != null) {
+            if (cause instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            if (cause instanceof UncheckedMessagingException unchecked) {
+                throw unchecked.getCause();
+            }
+            if (cause.getCause() == null && cause instanceof RuntimeException runtimeException) {
+                return runtimeException;
+            }
+            cause = cause.getCause();
+        }
+        return e;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static class ExtractionAction extends RecursiveAction {
+
+        private final ExtractionTask task;
+
+        ExtractionAction(ExtractionTask task) {
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                task.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (MessagingException e) {
+                throw new UncheckedMessagingException(e);
+            }
+        }
+    }
+
+    private static class UncheckedMessagingException extends RuntimeException {
+
+        UncheckedMessagingException(MessagingException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized MessagingException getCause() {
+            return (MessagingException) super.getCause();
+        }
+    }
+}
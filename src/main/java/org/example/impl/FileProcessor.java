@@ -1,96 +1,557 @@
 package org.example.impl;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.example.DedupMode;
+import org.example.Durability;
 import org.example.FileType;
+import org.example.MimeEngine;
+import org.example.OutputCompression;
+import org.example.OutputFormat;
+import org.example.OutputNaming;
+import org.example.ZipReadMode;
 
-class FileProcessor {
+class FileProcessor implements Closeable {
 
     private static final Logger log = LogManager.getLogger(FileProcessor.class);
 
+    private static final Pattern OUTPUT_FILE_NAME = Pattern.compile("test(\\d+)\\.eml(?:\\.gz|\\.deflate)?");
+
+    private static final Pattern TEMPORARY_FILE_NAME = Pattern.compile("\\.(part|dedup|content)\\d+\\.eml");
+
     private final Path outputPath;
 
     private final OutputFileNameGenerator outputFileNameGenerator;
 
     private final BufferedStreamFactory bufferedStreamFactory;
 
-    public FileProcessor(
-            Path outputPath,
-            int bufferSize,
-            long maximumOutputSize
-    ) {
-        this.outputFileNameGenerator = new OutputFileNameGenerator();
-        this.bufferedStreamFactory = new BufferedStreamFactory(bufferSize, maximumOutputSize);
-        this.outputPath = outputPath;
+    /**
+     * Compression of the email files, null when they are written as they are.
+     */
+    private final OutputCompressor outputCompressor;
+
+    private final OutputDurability outputDurability;
+
+    private final int bufferSize;
+
+    private final BufferPool bufferPool;
+
+    private final ZipReadMode zipReadMode;
+
+    private final ZipReadMode nestedZipReadMode;
+
+    private final int spoolThreshold;
+
+    private final Path spoolDirectory;
+
+    private final ExtractionTaskRunner taskRunner;
+
+    private final boolean ownsTaskRunner;
+
+    private final DeferredOutputFileNames deferredOutputFileNames;
+
+    private final OutputPipeline outputPipeline;
+
+    private final MimeEngine mimeEngine;
+
+    private final MessageDeduplicator messageDeduplicator;
+
+    private final boolean resume;
+
+    private final ExtractionManifest manifest;
+
+    private final ExtractionMetrics metrics;
+
+    private final int progressInterval;
+
+    private final Path metricsReport;
+
+    private final ExtractionJournal journal;
+
+    private final OutputSink outputSink;
+
+    private final HeaderIndexWriter headerIndex;
+
+    private final OutputNaming outputNaming;
+
+    private final OutputLayout outputLayout;
+
+    private final EntryFilter entryFilter;
+
+    /**
+     * Conditions on the headers of the emails written, null when every email is.
+     */
+    private final HeaderFilter headerFilter;
+
+    private final ExtractionQuota quota;
+
+    private final int threads;
+
+    private final AtomicLong temporaryFileCounter = new AtomicLong();
+
+    public FileProcessor(ExtractionSettings settings) throws IOException {
+        this(settings, null, null);
+    }
+
+    /**
+     * Processor drawing on pools shared with other processors running at the same time, the shared task runner
+     * is left open on close.
+     *
+     * @param sharedBufferPool buffers of the processor, a pool of its own from the settings if null
+     * @param sharedTaskRunner threads of the processor, a runner of its own from the settings if null
+     */
+    FileProcessor(ExtractionSettings settings, BufferPool sharedBufferPool, ExtractionTaskRunner sharedTaskRunner) throws IOException {
+        OutputFormat outputFormat = settings.getOutputFormat();
+        if (outputFormat != OutputFormat.DIRECTORY) {
+            // these rely on every email being a file of its own in the output directory
+            if (settings.isResume() || settings.getManifestPath() != null) {
+                throw new IllegalArgumentException("Resuming needs the " + OutputFormat.DIRECTORY + " output format");
+            }
+            if (settings.getDedupMode() != DedupMode.OFF) {
+                throw new IllegalArgumentException("Deduplication needs the " + OutputFormat.DIRECTORY + " output format");
+            }
+            if (settings.getOutputNaming() == OutputNaming.CONTENT) {
+                throw new IllegalArgumentException("Naming after the content needs the " + OutputFormat.DIRECTORY + " output format");
+            }
+            if (settings.getOutputCompression() != OutputCompression.NONE) {
+                throw new IllegalArgumentException("Compressing the emails needs the " + OutputFormat.DIRECTORY + " output format");
+            }
+        }
+        if (settings.getOutputNaming() == OutputNaming.CONTENT && settings.getDedupMode() != DedupMode.OFF) {
+            throw new IllegalArgumentException("Emails named after their content are already written once, deduplication is not needed");
+        }
+        Path dedupIndex = settings.getDedupIndex();
+        if (dedupIndex != null && !settings.isResume()
+                && dedupIndex.toAbsolutePath().normalize().startsWith(settings.getOutputPath().toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException("Dedup index inside the output directory, it would be deleted when the directory is emptied : " + dedupIndex);
+        }
+        this.entryFilter = new EntryFilter(
+                settings.getIncludes(),
+                settings.getExcludes(),
+                settings.getMinimumEntrySize(),
+                settings.getMaximumEntrySize(),
+                settings.getMaximumCompressionRatio()
+        );
+        HeaderFilter filter = new HeaderFilter(settings.getHeaderConditions());
+        this.headerFilter = filter.isAcceptAll() ? null : filter;
+        this.outputNaming = settings.getOutputNaming();
+        this.resume = settings.isResume();
+        this.bufferPool = sharedBufferPool != null
+                ? sharedBufferPool
+                : new BufferPool(settings.getBufferSize(), settings.isDirectBuffers());
+        this.metrics = new ExtractionMetrics(bufferPool);
+        this.progressInterval = settings.getProgressInterval();
+        this.metricsReport = settings.getMetricsReport();
+        if (settings.isJmx()) {
+            metrics.registerMBean();
+        }
+        this.quota = new ExtractionQuota(
+                settings.getMaximumOutputSize(),
+                settings.getArchiveLimit(),
+                settings.getMessageLimit(),
+                settings.getMaximumCompressionRatio(),
+                metrics
+        );
+        this.outputCompressor = settings.getOutputCompression() != OutputCompression.NONE
+                ? new OutputCompressor(settings.getOutputCompression(), settings.getCompressionLevel(), quota, metrics)
+                : null;
+        String compressionExtension = outputCompressor != null ? outputCompressor.getExtension() : "";
+        this.outputPath = settings.getOutputPath();
+        this.outputDurability = new OutputDurability(settings.getDurability(), outputPath);
+        this.bufferedStreamFactory = new BufferedStreamFactory(bufferPool, quota, metrics, outputCompressor, outputDurability);
+        this.outputLayout = new OutputLayout(outputPath, settings.getShardDepth(), compressionExtension);
+        this.bufferSize = settings.getBufferSize();
+        this.zipReadMode = settings.getZipReadMode();
+        this.nestedZipReadMode = settings.getNestedZipReadMode();
+        if (settings.getSpoolThreshold() < 0 || settings.getSpoolThreshold() >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Spool threshold should be between 0 and " + (Integer.MAX_VALUE - 1) + " bytes");
+        }
+        this.spoolThreshold = (int) settings.getSpoolThreshold();
+        this.spoolDirectory = settings.getSpoolDirectory();
+        this.threads = settings.getThreads();
+        this.ownsTaskRunner = sharedTaskRunner == null;
+        this.taskRunner = ownsTaskRunner ? new ExtractionTaskRunner(threads) : sharedTaskRunner;
+        // compressing takes longer than extracting and forcing a file waits on the disk, both are left to writer threads
+        boolean slowWrites = outputCompressor != null || settings.getDurability() == Durability.FILE;
+        int writerThreads = settings.getWriterThreads() == 0 && slowWrites && outputFormat == OutputFormat.DIRECTORY
+                ? Runtime.getRuntime().availableProcessors()
+                : settings.getWriterThreads();
+        this.outputPipeline = writerThreads > 0
+                ? new OutputPipeline(writerThreads, bufferPool, settings.getInFlightLimit())
+                : null;
+        this.mimeEngine = settings.getMimeEngine();
+        this.messageDeduplicator = settings.getDedupMode() != DedupMode.OFF
+                ? new MessageDeduplicator(settings.getDedupMode(), settings.getDedupIndex())
+                : null;
+        // sequential names are known only at the end when emails complete out of order, or when duplicates are dropped
+        // by writer threads, entries of a container cannot be renamed and are numbered as they are written
+        boolean deferredNames = outputFormat == OutputFormat.DIRECTORY
+                && outputNaming == OutputNaming.SEQUENTIAL
+                && (taskRunner.isParallel() || (outputPipeline != null && messageDeduplicator != null));
+        this.deferredOutputFileNames = deferredNames ? new DeferredOutputFileNames(outputPath) : null;
+        Path manifestPath = settings.getManifestPath();
+        if (manifestPath == null && resume) {
+            manifestPath = outputPath.resolve(ExtractionSettings.DEFAULT_MANIFEST_NAME);
+        }
+        // records can be written as soon as an entry is done only if its output is complete by then
+        this.manifest = manifestPath != null
+                ? new ExtractionManifest(manifestPath, resume, outputPipeline == null && !deferredNames, outputLayout::nameOf)
+                : null;
+        this.outputFileNameGenerator = new OutputFileNameGenerator(resume ? lastRecordedOutputNumber() : 0, compressionExtension);
+        this.journal = settings.getJournalPath() != null
+                ? new ExtractionJournal(settings.getJournalPath(), bufferSize)
+                : null;
+        this.outputSink = switch (outputFormat) {
+            case DIRECTORY -> null;
+            case ZIP -> new ZipOutputSink(outputPath);
+            case MBOX -> new MboxOutputSink(outputPath);
+            case TAR -> new TarOutputSink(outputPath);
+            case INDEX -> null;
+        };
+        this.headerIndex = outputFormat == OutputFormat.INDEX ? new HeaderIndexWriter(outputPath) : null;
     }
 
     public void process(
             File inputFile,
             ArrayDeque<FileType> fileTypePath
     ) throws IOException, MessagingException {
+        process(List.of(inputFile), fileTypePath);
+    }
 
-        log.debug("Starting mail extraction from : " + inputFile + " to : " + outputPath);
+    /**
+     * Extracts several inputs into the same output, with one quota and one report. Inputs are run as tasks
+     * of their own, largest first so that a large one does not start last and hold up the end of the run.
+     * An input which fails does not stop the others, the first failure is thrown once they are done.
+     */
+    public void process(
+            List<File> inputFiles,
+            ArrayDeque<FileType> fileTypePath
+    ) throws IOException, MessagingException {
+
+        log.debug("Starting mail extraction from : " + inputFiles + " to : " + outputPath);
         log.debug("File format is : " + fileTypePath);
 
         initialCleanup();
 
-        final String fileName = inputFile.getName();
-        final ExtractionPath extractionPath = new ExtractionPath();
+        List<File> sortedInputFiles = new ArrayList<>(inputFiles);
+        sortedInputFiles.sort(Comparator.comparingLong(File::length).reversed());
+        boolean batch = inputFiles.size() > 1;
+        List<ExtractionTaskRunner.ExtractionTask> inputTasks = new ArrayList<>();
+        List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < sortedInputFiles.size(); i++) {
+            File inputFile = sortedInputFiles.get(i);
+            // inputs of a batch may share a file name in different directories, they are told apart by their
+            // position for the output order and by their length and date for the manifest
+            String inputName = batch ? inputFile.getPath() : inputFile.getName();
+            String inputFingerprint = batch ? inputFile.length() + ":" + inputFile.lastModified() : "";
+            final SourceEntry inputEntry = new SourceEntry(inputName, i, inputFingerprint, -1, inputFile.length());
+            final ExtractionPath extractionPath = new ExtractionPath(journal);
+            final ArrayDeque<FileType> taskFileTypePath = fileTypePath.clone();
+            // the input file itself is identified by its length and date, its entries are keyed on their own content
+            final String inputKey = extractionPath.keyOf(
+                    new SourceEntry(inputName, 0, inputFile.length() + ":" + inputFile.lastModified())
+            );
+            if (resume && manifest.isCompleted(inputKey)) {
+                log.info("Already extracted, nothing to do : " + inputFile);
+                continue;
+            }
+            inputTasks.add(() -> {
+                try {
+                    processInputStreamBasedOnType(inputFile, taskFileTypePath, inputEntry, extractionPath);
+                    if (manifest != null) {
+                        manifest.markCompleted(inputKey);
+                    }
+                } catch (QuotaExceededException e) {
+                    // a limit reached outside of any container, the rest of the input is skipped
+                    log.warn("Input skipped, " + e.getMessage() + " : " + inputFile);
+                } catch (IOException | MessagingException | RuntimeException e) {
+                    if (!batch) {
+                        throw e;
+                    }
+                    metrics.errorOccurred();
+                    log.error("Exception while extracting : " + inputFile, e);
+                    failures.add(e);
+                }
+            });
+        }
+        if (inputTasks.isEmpty()) {
+            return;
+        }
+
+        boolean outputsComplete = false;
+        boolean completedInput = false;
+        Exception syncFailure = null;
+        metrics.startProgress(progressInterval);
+        try {
+            taskRunner.run(() -> taskRunner.runAll(inputTasks));
+            if (!failures.isEmpty()) {
+                throw failed(failures, sortedInputFiles.size());
+            }
+            completedInput = true;
+        } finally {
+            try {
+                if (outputPipeline != null) {
+                    outputPipeline.awaitCompletion();
+                }
+                if (outputSink != null) {
+                    outputSink.close();
+                }
+                if (headerIndex != null) {
+                    headerIndex.close();
+                }
+                outputsComplete = true;
+            } finally {
+                if (deferredOutputFileNames != null) {
+                    deferredOutputFileNames.assignFinalNames(outputFileNameGenerator, this::onOutputRenamed);
+                }
+                if (outputsComplete) {
+                    // emails are forced once they have their final names, and before the manifest records them
+                    try {
+                        outputDurability.syncOutput(taskRunner);
+                    } catch (IOException | MessagingException | RuntimeException e) {
+                        log.error("Cannot force the output to disk", e);
+                        metrics.errorOccurred();
+                        outputsComplete = false;
+                        syncFailure = e;
+                    }
+                }
+                if (manifest != null) {
+                    if (outputsComplete) {
+                        manifest.flush();
+                    } else {
+                        log.warn("Some emails could not be written, progress is not recorded in the manifest");
+                    }
+                }
+                if (messageDeduplicator != null) {
+                    messageDeduplicator.saveIndex();
+                    messageDeduplicator.logReport();
+                }
+                metrics.stopProgress();
+                metrics.logSummary();
+                if (metricsReport != null) {
+                    metrics.writeReport(metricsReport, outputsComplete && completedInput);
+                }
+                if (journal != null) {
+                    journal.flush();
+                }
+            }
+        }
 
-        processInputStreamBasedOnType(inputFile, fileTypePath, fileName, extractionPath);
+        if (syncFailure != null) {
+            throw new IOException("Cannot force the output to disk : " + syncFailure.getMessage(), syncFailure);
+        }
 
         log.debug("Processing finished");
     }
 
+    private static IOException failed(List<Exception> failures, int inputCount) {
+        Exception first = failures.get(0);
+        IOException failure = new IOException(failures.size() + " of " + inputCount + " inputs failed : " + first.getMessage(), first);
+        for (int i = 1; i < failures.size(); i++) {
+            failure.addSuppressed(failures.get(i));
+        }
+        return failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsTaskRunner) {
+            taskRunner.close();
+        }
+        if (outputPipeline != null) {
+            outputPipeline.close();
+        }
+        if (manifest != null) {
+            manifest.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (outputSink != null) {
+            outputSink.close();
+        }
+        if (headerIndex != null) {
+            headerIndex.close();
+        }
+        metrics.unregisterMBean();
+    }
+
+    private void onOutputRenamed(File from, File to) {
+        outputDurability.relocate(from, to);
+        if (messageDeduplicator != null) {
+            messageDeduplicator.relocate(from, to);
+        }
+        if (manifest != null) {
+            manifest.relocate(from, to);
+        }
+        if (journal != null) {
+            journal.rename(outputLayout.nameOf(from), outputLayout.nameOf(to));
+        }
+    }
+
+    private boolean isCompleted(ExtractionPath extractionPath, FileType fileType, SourceEntry entry) {
+        if (!resume || !manifest.isCompleted(extractionPath.keyOf(entry))) {
+            return false;
+        }
+        // extracted by a previous run
+        extractionPath.skip(fileType, entry);
+        return true;
+    }
+
+    private boolean isFiltered(ExtractionPath extractionPath, FileType fileType, SourceEntry entry, long compressedSize) {
+        String reason = entryFilter.reject(entry.name(), entry.size(), compressedSize);
+        if (reason == null) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Entry filtered out, " + reason + " : " + entry.name());
+        }
+        metrics.entryFiltered();
+        extractionPath.skip(fileType, entry);
+        return true;
+    }
+
+    /**
+     * Whether the declared size of an entry is more than the quota leaves, the entry is then skipped unread.
+     */
+    private boolean isOverQuota(
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath,
+            SourceEntry entry,
+            ExtractionQuota.Counter archiveQuota
+    ) {
+        // an email at the last level is written as it is
+        boolean written = fileTypePath.size() == 1 && fileTypePath.peekFirst() == FileType.EML;
+        String reason = quota.rejectDeclared(entry.size(), archiveQuota, written);
+        if (reason == null) {
+            return false;
+        }
+        log.warn("Entry skipped, " + reason + " : " + entry.name());
+        markFailed(extractionPath, entry);
+        extractionPath.skip(fileTypePath.peekFirst(), entry);
+        return true;
+    }
+
+    /**
+     * Whether the quota of the whole extraction or of some archive or email was exceeded, some entries were then
+     * left out.
+     */
+    public boolean isQuotaExceeded() {
+        return metrics.getQuotaExceeded() > 0;
+    }
+
+    private void markCompleted(ExtractionPath extractionPath, SourceEntry entry) throws IOException {
+        if (manifest != null) {
+            manifest.markCompleted(extractionPath.keyOf(entry));
+        }
+    }
+
+    private void markFailed(ExtractionPath extractionPath, SourceEntry entry) {
+        if (manifest != null) {
+            manifest.markFailed(extractionPath.keyOf(entry));
+        }
+    }
+
     private void processInputStreamBasedOnType(
             File inputFile,
             ArrayDeque<FileType> fileTypePath,
-            String fileName,
+            SourceEntry entry,
             ExtractionPath extractionPath
     ) throws IOException, MessagingException {
-        try (InputStream inputStream = bufferedStreamFactory.readFile(inputFile)) {
+        if (fileTypePath.peekFirst() == FileType.MAILDIR) {
+            processMaildir(inputFile, fileTypePath, entry, extractionPath);
+            return;
+        }
+        if (fileTypePath.peekFirst() == FileType.MBOX) {
+            processMboxFile(inputFile, fileTypePath, entry, extractionPath);
+            return;
+        }
+        if (fileTypePath.peekFirst() == FileType.TAR) {
+            processTarFile(inputFile, fileTypePath, entry, extractionPath);
+            return;
+        }
+        if (fileTypePath.peekFirst() == FileType.GZ && taskRunner.isParallel()) {
+            processGzipFile(inputFile, fileTypePath, entry, extractionPath);
+            return;
+        }
+        if (fileTypePath.peekFirst() == FileType.ZIP && zipReadMode == ZipReadMode.CENTRAL_DIRECTORY) {
+            ZipCentralDirectory zipCentralDirectory = openCentralDirectory(inputFile);
+            if (zipCentralDirectory != null) {
+                try (zipCentralDirectory) {
+                    processZipFile(zipCentralDirectory, fileTypePath, entry, extractionPath);
+                }
+                return;
+            }
+        }
+        metrics.expectInput(inputFile.length());
+        try (FileRangeInputStream inputStream = bufferedStreamFactory.readFile(inputFile)) {
+            // the progress of a streamed file is its read position
+            metrics.trackInput(inputStream::getPosition);
             processInputStreamBasedOnType(
                     inputStream,
                     fileTypePath,
-                    fileName,
+                    entry,
                     extractionPath
             );
+        } finally {
+            metrics.untrackInput(inputFile.length());
         }
     }
 
     private void processInputStreamBasedOnType(
             InputStream inputStream,
             ArrayDeque<FileType> fileTypePath,
-            String fileName,
+            SourceEntry entry,
             ExtractionPath extractionPath
     ) throws IOException, MessagingException {
         FileType currentFileType = fileTypePath.pollFirst();
         try {
             switch (currentFileType) {
-                case ZIP -> processZipInputStream(fileName, inputStream, extractionPath, fileTypePath);
-                case EML -> processEmlInputStream(fileName, inputStream, extractionPath, fileTypePath);
-                default -> throw new IllegalArgumentException("Unsupported file type : " + currentFileType);
+                case ZIP -> processZipInputStream(entry, inputStream, extractionPath, fileTypePath);
+                case EML -> processEmlInputStream(entry, inputStream, extractionPath, fileTypePath);
+                case MBOX -> processMboxInputStream(entry, inputStream, extractionPath, fileTypePath);
+                case TAR -> processTarInputStream(entry, inputStream, extractionPath, fileTypePath);
+                case GZ -> processGzipInputStream(entry, inputStream, extractionPath, fileTypePath);
+                case MAILDIR -> throw new IllegalArgumentException("A maildir can only be the input directory");
             }
         } finally {
             fileTypePath.addFirst(currentFileType);
@@ -99,73 +560,793 @@ class FileProcessor {
     }
 
     private void initialCleanup() throws IOException {
+        if (outputSink != null || headerIndex != null) {
+            // the container or the index replaces the output directory
+            return;
+        }
         Files.createDirectories(outputPath);
         log.info("Created directory : " + outputPath);
-        FileUtils.cleanDirectory(outputPath.toFile());
+        if (!resume) {
+            if (messageDeduplicator != null) {
+                messageDeduplicator.forgetFilesIn(outputPath);
+            }
+            FileUtils.cleanDirectory(outputPath.toFile());
+            return;
+        }
+        // emails of an interrupted run, which never got their final name or may be incomplete
+        File[] files = outputPath.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (TEMPORARY_FILE_NAME.matcher(name).matches()
+                        || (OUTPUT_FILE_NAME.matcher(name).matches() && !manifest.isRecordedOutput(name))) {
+                    log.info("Deleting incomplete output : " + file);
+                    Files.delete(file.toPath());
+                }
+            }
+        }
+    }
+
+    private int lastRecordedOutputNumber() {
+        int last = 0;
+        File[] files = outputPath.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = OUTPUT_FILE_NAME.matcher(file.getName());
+                if (matcher.matches() && manifest.isRecordedOutput(file.getName())) {
+                    last = Math.max(last, Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        return last;
+    }
+
+    private ZipCentralDirectory openCentralDirectory(File inputFile) throws IOException {
+        try {
+            return ZipCentralDirectory.open(inputFile, bufferPool);
+        } catch (ZipException e) {
+            // damaged or truncated archive, the streaming reader can still recover the leading entries
+            log.warn("Cannot read central directory of " + inputFile + ", falling back to streaming : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private ZipCentralDirectory openCentralDirectory(SpooledContainer container) throws IOException {
+        try {
+            ByteBuffer content = container.getContent();
+            return content != null
+                    ? ZipCentralDirectory.open(content, bufferPool)
+                    : ZipCentralDirectory.open(container.getFile().toFile(), bufferPool);
+        } catch (ZipException e) {
+            log.warn("Cannot read central directory of a nested zip, falling back to streaming : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void processZipFile(
+            ZipCentralDirectory zipCentralDirectory,
+            ArrayDeque<FileType> fileTypePath,
+            SourceEntry entry,
+            ExtractionPath extractionPath
+    ) throws IOException, MessagingException {
+        FileType currentFileType = fileTypePath.pollFirst();
+        assert (currentFileType == FileType.ZIP);
+        try {
+            metrics.expectInput(zipCentralDirectory.getTotalSize());
+            processZipEntries(zipCentralDirectory, fileTypePath, entry, extractionPath, true);
+        } finally {
+            fileTypePath.addFirst(currentFileType);
+        }
+    }
+
+    /**
+     * Entries of a zip file on disk or spooled, the zip being already taken off the file type path.
+     *
+     * @param trackInput whether the inflated entries are the input progress, nested zips are part of an entry which is
+     */
+    private void processZipEntries(
+            ZipCentralDirectory zipCentralDirectory,
+            ArrayDeque<FileType> fileTypePath,
+            SourceEntry entry,
+            ExtractionPath extractionPath,
+            boolean trackInput
+    ) throws IOException, MessagingException {
+        assert (fileTypePath.size() > 0);
+        if (log.isDebugEnabled()) {
+            log.debug("processZipEntries. entries : " + zipCentralDirectory.getEntries().size()
+                    + ", uncompressed size : " + zipCentralDirectory.getTotalSize());
+        }
+        metrics.archiveOpened();
+        ExtractionQuota.Counter archiveQuota = quota.openArchive();
+        try (
+                ExtractionPath.Scope scope = extractionPath.pushZip(entry);
+        ) {
+            // entries are independent of each other, each one becomes a separate task
+            List<ExtractionTaskRunner.ExtractionTask> entryTasks = new ArrayList<>();
+            List<ZipCentralDirectory.Entry> entries = zipCentralDirectory.getEntries();
+            for (int i = 0; i < entries.size(); i++) {
+                ZipCentralDirectory.Entry zipEntry = entries.get(i);
+                SourceEntry sourceEntry = SourceEntry.of(zipEntry, i);
+                long inputSize = trackInput ? zipEntry.size() : 0;
+                if (zipEntry.isDirectory()) {
+                    // the entries of a directory are listed with the others, only the directory itself is skipped
+                    extractionPath.skip(fileTypePath.peekFirst(), sourceEntry);
+                    continue;
+                }
+                if (isFiltered(extractionPath, fileTypePath.peekFirst(), sourceEntry, zipEntry.compressedSize())) {
+                    metrics.inputProcessed(inputSize);
+                    continue;
+                }
+                metrics.entryFound();
+                if (isCompleted(extractionPath, fileTypePath.peekFirst(), sourceEntry)) {
+                    metrics.inputProcessed(inputSize);
+                    continue;
+                }
+                ExtractionPath entryExtractionPath = extractionPath.copy();
+                ArrayDeque<FileType> entryFileTypePath = fileTypePath.clone();
+                entryTasks.add(() -> {
+                    // checked when the task runs, the entries before it may have used the quota
+                    if (isOverQuota(entryExtractionPath, entryFileTypePath, sourceEntry, archiveQuota)) {
+                        metrics.inputProcessed(inputSize);
+                        return;
+                    }
+                    try (
+                            InputStream entryStream = zipCentralDirectory.getInputStream(zipEntry);
+                            InputStream inputStream = meterEntry(quota.guardEntry(
+                                    entryStream,
+                                    archiveQuota,
+                                    ZipCentralDirectory.compressedBytesRead(entryStream)
+                            ))
+                    ) {
+                        processInputStreamBasedOnType(
+                                inputStream,
+                                entryFileTypePath,
+                                sourceEntry,
+                                entryExtractionPath
+                        );
+                        markCompleted(entryExtractionPath, sourceEntry);
+                    } catch (QuotaExceededException e) {
+                        markFailed(entryExtractionPath, sourceEntry);
+                        log.warn("Entry skipped, " + e.getMessage() + " : " + sourceEntry.name());
+                    } catch (IOException e) {
+                        markFailed(entryExtractionPath, sourceEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading zip file", e);
+                    } catch (MessagingException e) {
+                        markFailed(entryExtractionPath, sourceEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading zip file", e);
+                    } finally {
+                        metrics.inputProcessed(inputSize);
+                    }
+                });
+            }
+            taskRunner.runAll(entryTasks);
+            scope.complete();
+        }
     }
 
     private void processZipInputStream(
-            String fileName,
+            SourceEntry entry,
             InputStream inputStream,
             ExtractionPath extractionPath,
             ArrayDeque<FileType> fileTypePath
-    ) throws IOException {
+    ) throws IOException, MessagingException {
         assert (fileTypePath.size() > 0);
-        log.debug("processZipInputStream. fileTypePath : " + fileTypePath);
+        // an empty path is the input file itself, read the way --zip-reader asked for
+        if (nestedZipReadMode == ZipReadMode.CENTRAL_DIRECTORY && !extractionPath.isEmpty()) {
+            processSpooledZip(entry, inputStream, extractionPath, fileTypePath);
+            return;
+        }
+        processZipStream(entry, inputStream, extractionPath, fileTypePath);
+    }
+
+    /**
+     * Copies a nested zip to the heap or a temporary file, so that its entries can be read through the central
+     * directory, as separate tasks.
+     */
+    private void processSpooledZip(
+            SourceEntry entry,
+            InputStream inputStream,
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath
+    ) throws IOException, MessagingException {
+        try (SpooledContainer container = SpooledContainer.spool(inputStream, spoolThreshold, spoolDirectory, bufferPool)) {
+            ZipCentralDirectory zipCentralDirectory = openCentralDirectory(container);
+            if (zipCentralDirectory != null) {
+                try (zipCentralDirectory) {
+                    processZipEntries(zipCentralDirectory, fileTypePath, entry, extractionPath, false);
+                }
+                return;
+            }
+            ByteBuffer content = container.getContent();
+            try (InputStream spooledStream = content != null
+                    ? new ByteBufferInputStream(content)
+                    : bufferedStreamFactory.readFile(container.getFile().toFile())) {
+                processZipStream(entry, spooledStream, extractionPath, fileTypePath);
+            }
+        }
+    }
+
+    private void processZipStream(
+            SourceEntry entry,
+            InputStream inputStream,
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath
+    ) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("processZipStream. fileTypePath : " + fileTypePath);
+        }
+        metrics.archiveOpened();
+        ExtractionQuota.Counter archiveQuota = quota.openArchive();
         try (
-                Closeable noop = extractionPath.pushZip(fileName);
+                ExtractionPath.Scope scope = extractionPath.pushZip(entry);
         ) {
-            ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+            // a zip stream can only be read front to back, its entries are processed on the current task
+            CountingInputStream compressedStream = new CountingInputStream(inputStream);
+            ZipInputStream zipInputStream = new ZipInputStream(compressedStream);
             ZipEntry zipEntry = null;
+            int entryOrdinal = 0;
             while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                try {
-                    if (zipEntry.isDirectory()) {
-                        // do not process nested directories
-                        log.debug("Skipping nested directory : " + zipEntry.getName());
-                        return;
+                SourceEntry sourceEntry = SourceEntry.of(zipEntry, entryOrdinal++);
+                if (zipEntry.isDirectory()) {
+                    // the entries of a directory are listed with the others, only the directory itself is skipped
+                    extractionPath.skip(fileTypePath.peekFirst(), sourceEntry);
+                    continue;
+                }
+                // sizes are in the local header unless written after the data, the next entry skips the data
+                if (isFiltered(extractionPath, fileTypePath.peekFirst(), sourceEntry, zipEntry.getCompressedSize())) {
+                    continue;
+                }
+
+                metrics.entryFound();
+                if (isCompleted(extractionPath, fileTypePath.peekFirst(), sourceEntry)) {
+                    continue;
+                }
+                if (isOverQuota(extractionPath, fileTypePath, sourceEntry, archiveQuota)) {
+                    // the next entry is only reached by inflating this one, the rest of the archive is skipped
+                    return;
+                }
+                // the entry stream must stay open for the next entries
+                long entryStart = compressedStream.getByteCount();
+                try (InputStream entryStream = meterEntry(quota.guardEntry(
+                        CloseShieldInputStream.wrap(zipInputStream),
+                        archiveQuota,
+                        // the zip stream reads ahead a little, close enough for a ratio
+                        () -> compressedStream.getByteCount() - entryStart
+                ))) {
+                    processInputStreamBasedOnType(
+                            entryStream,
+                            fileTypePath,
+                            sourceEntry,
+                            extractionPath
+                    );
+                    markCompleted(extractionPath, sourceEntry);
+                } catch (QuotaExceededException e) {
+                    markFailed(extractionPath, sourceEntry);
+                    log.warn("Entry skipped with the rest of the archive, " + e.getMessage() + " : " + sourceEntry.name());
+                    return;
+                } catch (IOException e) {
+                    markFailed(extractionPath, sourceEntry);
+                    metrics.errorOccurred();
+                    log.error("Exception while reading zip file", e);
+                } catch (MessagingException e) {
+                    markFailed(extractionPath, sourceEntry);
+                    metrics.errorOccurred();
+                    log.error("Exception while reading zip file", e);
+                }
+            }
+            scope.complete();
+        }
+    }
+
+    private void processMboxFile(
+            File inputFile,
+            ArrayDeque<FileType> fileTypePath,
+            SourceEntry entry,
+            ExtractionPath extractionPath
+    ) throws IOException, MessagingException {
+        FileType currentFileType = fileTypePath.pollFirst();
+        assert (currentFileType == FileType.MBOX);
+        assert (fileTypePath.size() > 0);
+        metrics.archiveOpened();
+        try (
+                FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                ExtractionPath.Scope scope = extractionPath.push(FileType.MBOX, entry);
+        ) {
+            metrics.expectInput(channel.size());
+            // the file is split on its "From " lines first, each email becomes a separate task
+            List<MboxIndex.Message> messages = MboxIndex.scan(channel, taskRunner);
+            if (log.isDebugEnabled()) {
+                log.debug("processMboxFile. messages : " + messages.size());
+            }
+            metrics.inputProcessed(messages.isEmpty() ? channel.size() : messages.get(0).start());
+            List<ExtractionTaskRunner.ExtractionTask> messageTasks = new ArrayList<>();
+            for (int i = 0; i < messages.size(); i++) {
+                MboxIndex.Message message = messages.get(i);
+                SourceEntry messageEntry = new SourceEntry(null, i, "", message.contentStart(), message.length());
+                metrics.entryFound();
+                if (isCompleted(extractionPath, fileTypePath.peekFirst(), messageEntry)) {
+                    metrics.inputProcessed(message.next() - message.start());
+                    continue;
+                }
+                ExtractionPath messageExtractionPath = extractionPath.copy();
+                ArrayDeque<FileType> messageFileTypePath = fileTypePath.clone();
+                messageTasks.add(() -> {
+                    try (InputStream inputStream = openMboxMessage(channel, message)) {
+                        processInputStreamBasedOnType(
+                                inputStream,
+                                messageFileTypePath,
+                                messageEntry,
+                                messageExtractionPath
+                        );
+                        markCompleted(messageExtractionPath, messageEntry);
+                    } catch (QuotaExceededException e) {
+                        markFailed(messageExtractionPath, messageEntry);
+                        log.warn("Entry skipped, " + e.getMessage() + " : " + messageEntry.name());
+                    } catch (IOException e) {
+                        markFailed(messageExtractionPath, messageEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading mbox file", e);
+                    } catch (MessagingException e) {
+                        markFailed(messageExtractionPath, messageEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading mbox file", e);
+                    } finally {
+                        metrics.inputProcessed(message.next() - message.start());
                     }
+                });
+            }
+            taskRunner.runAll(messageTasks);
+            scope.complete();
+        } finally {
+            fileTypePath.addFirst(currentFileType);
+        }
+    }
 
-                    String zipEntryName = zipEntry.getName();
+    private InputStream openMboxMessage(FileChannel channel, MboxIndex.Message message) throws IOException {
+        if (!message.quoted()) {
+            // the email is a plain range of the file, it may be copied without reading
+            return new FileRangeInputStream(channel, message.contentStart(), message.length(), bufferPool);
+        }
+        // the quoted lines are restored while reading
+        FileRangeInputStream range = new FileRangeInputStream(channel, message.start(), message.next() - message.start(), bufferPool);
+        MboxReader reader = new MboxReader(range, bufferPool);
+        return new ProxyInputStream(reader.nextMessage()) {
+            @Override
+            public void close() throws IOException {
+                reader.close();
+                range.close();
+            }
+        };
+    }
 
+    private void processMboxInputStream(
+            SourceEntry entry,
+            InputStream inputStream,
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath
+    ) throws IOException {
+        assert (fileTypePath.size() > 0);
+        if (log.isDebugEnabled()) {
+            log.debug("processMboxInputStream. fileTypePath : " + fileTypePath);
+        }
+        metrics.archiveOpened();
+        try (
+                ExtractionPath.Scope scope = extractionPath.push(FileType.MBOX, entry);
+                MboxReader mboxReader = new MboxReader(inputStream, bufferPool);
+        ) {
+            // a nested mbox can only be read front to back, its emails are processed on the current task
+            InputStream messageStream;
+            int messageOrdinal = 0;
+            while ((messageStream = mboxReader.nextMessage()) != null) {
+                SourceEntry messageEntry = new SourceEntry(null, messageOrdinal++);
+                metrics.entryFound();
+                if (isCompleted(extractionPath, fileTypePath.peekFirst(), messageEntry)) {
+                    continue;
+                }
+                try {
                     processInputStreamBasedOnType(
-                            zipInputStream,
+                            messageStream,
                             fileTypePath,
-                            zipEntryName,
+                            messageEntry,
                             extractionPath
                     );
+                    markCompleted(extractionPath, messageEntry);
+                } catch (QuotaExceededException e) {
+                    markFailed(extractionPath, messageEntry);
+                    log.warn("Entry skipped, " + e.getMessage() + " : " + messageEntry.name());
+                } catch (IOException e) {
+                    markFailed(extractionPath, messageEntry);
+                    metrics.errorOccurred();
+                    log.error("Exception while reading mbox file", e);
+                } catch (MessagingException e) {
+                    markFailed(extractionPath, messageEntry);
+                    metrics.errorOccurred();
+                    log.error("Exception while reading mbox file", e);
+                }
+            }
+            scope.complete();
+        }
+    }
 
+    private void processTarFile(
+            File inputFile,
+            ArrayDeque<FileType> fileTypePath,
+            SourceEntry entry,
+            ExtractionPath extractionPath
+    ) throws IOException, MessagingException {
+        FileType currentFileType = fileTypePath.pollFirst();
+        assert (currentFileType == FileType.TAR);
+        assert (fileTypePath.size() > 0);
+        metrics.archiveOpened();
+        try (
+                FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                ExtractionPath.Scope scope = extractionPath.push(FileType.TAR, entry);
+        ) {
+            long size = channel.size();
+            metrics.expectInput(size);
+            // the headers are read first, skipping the content, then each file becomes a separate task
+            List<TarReader.Entry> tarEntries = new ArrayList<>();
+            try (FileRangeInputStream inputStream = new FileRangeInputStream(channel, 0, size, bufferPool)) {
+                TarReader tarReader = new TarReader(inputStream);
+                TarReader.Entry tarEntry;
+                while ((tarEntry = tarReader.nextEntry()) != null) {
+                    tarEntries.add(tarEntry);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("processTarFile. entries : " + tarEntries.size());
+            }
+            ExtractionQuota.Counter archiveQuota = quota.openArchive();
+            List<ExtractionTaskRunner.ExtractionTask> entryTasks = new ArrayList<>();
+            long contentSize = 0;
+            for (int i = 0; i < tarEntries.size(); i++) {
+                TarReader.Entry tarEntry = tarEntries.get(i);
+                SourceEntry sourceEntry = new SourceEntry(tarEntry.name(), i, "", tarEntry.dataOffset(), tarEntry.size());
+                if (!tarEntry.file()) {
+                    // directories and links have no email of their own
+                    extractionPath.skip(fileTypePath.peekFirst(), sourceEntry);
+                    continue;
+                }
+                contentSize += tarEntry.size();
+                if (isFiltered(extractionPath, fileTypePath.peekFirst(), sourceEntry, -1)) {
+                    metrics.inputProcessed(tarEntry.size());
+                    continue;
+                }
+                metrics.entryFound();
+                if (isCompleted(extractionPath, fileTypePath.peekFirst(), sourceEntry)) {
+                    metrics.inputProcessed(tarEntry.size());
+                    continue;
+                }
+                ExtractionPath entryExtractionPath = extractionPath.copy();
+                ArrayDeque<FileType> entryFileTypePath = fileTypePath.clone();
+                entryTasks.add(() -> {
+                    if (isOverQuota(entryExtractionPath, entryFileTypePath, sourceEntry, archiveQuota)) {
+                        metrics.inputProcessed(tarEntry.size());
+                        return;
+                    }
+                    try (InputStream inputStream = quota.guardEntry(
+                            new FileRangeInputStream(channel, tarEntry.dataOffset(), tarEntry.size(), bufferPool),
+                            archiveQuota,
+                            null
+                    )) {
+                        processInputStreamBasedOnType(
+                                inputStream,
+                                entryFileTypePath,
+                                sourceEntry,
+                                entryExtractionPath
+                        );
+                        markCompleted(entryExtractionPath, sourceEntry);
+                    } catch (QuotaExceededException e) {
+                        markFailed(entryExtractionPath, sourceEntry);
+                        log.warn("Entry skipped, " + e.getMessage() + " : " + sourceEntry.name());
+                    } catch (IOException e) {
+                        markFailed(entryExtractionPath, sourceEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading tar file", e);
+                    } catch (MessagingException e) {
+                        markFailed(entryExtractionPath, sourceEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading tar file", e);
+                    } finally {
+                        metrics.inputProcessed(tarEntry.size());
+                    }
+                });
+            }
+            // headers and padding
+            metrics.inputProcessed(size - contentSize);
+            taskRunner.runAll(entryTasks);
+            scope.complete();
+        } finally {
+            fileTypePath.addFirst(currentFileType);
+        }
+    }
+
+    private void processTarInputStream(
+            SourceEntry entry,
+            InputStream inputStream,
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath
+    ) throws IOException {
+        assert (fileTypePath.size() > 0);
+        if (log.isDebugEnabled()) {
+            log.debug("processTarInputStream. fileTypePath : " + fileTypePath);
+        }
+        metrics.archiveOpened();
+        ExtractionQuota.Counter archiveQuota = quota.openArchive();
+        try (
+                ExtractionPath.Scope scope = extractionPath.push(FileType.TAR, entry);
+                TarReader tarReader = new TarReader(inputStream);
+        ) {
+            // a tar stream can only be read front to back, its entries are processed on the current task
+            TarReader.Entry tarEntry;
+            int entryOrdinal = 0;
+            while ((tarEntry = tarReader.nextEntry()) != null) {
+                SourceEntry sourceEntry = new SourceEntry(tarEntry.name(), entryOrdinal++, "", -1, tarEntry.size());
+                if (!tarEntry.file()) {
+                    extractionPath.skip(fileTypePath.peekFirst(), sourceEntry);
+                    continue;
+                }
+                if (isFiltered(extractionPath, fileTypePath.peekFirst(), sourceEntry, -1)) {
+                    continue;
+                }
+                metrics.entryFound();
+                if (isCompleted(extractionPath, fileTypePath.peekFirst(), sourceEntry)) {
+                    continue;
+                }
+                if (isOverQuota(extractionPath, fileTypePath, sourceEntry, archiveQuota)) {
+                    continue;
+                }
+                try {
+                    processInputStreamBasedOnType(
+                            quota.guardEntry(tarReader.entryStream(), archiveQuota, null),
+                            fileTypePath,
+                            sourceEntry,
+                            extractionPath
+                    );
+                    markCompleted(extractionPath, sourceEntry);
+                } catch (QuotaExceededException e) {
+                    markFailed(extractionPath, sourceEntry);
+                    log.warn("Entry skipped, " + e.getMessage() + " : " + sourceEntry.name());
                 } catch (IOException e) {
-                    log.error("Exception while reading zip file", e);
+                    markFailed(extractionPath, sourceEntry);
+                    metrics.errorOccurred();
+                    log.error("Exception while reading tar file", e);
                 } catch (MessagingException e) {
-                    log.error("Exception while reading zip file", e);
+                    markFailed(extractionPath, sourceEntry);
+                    metrics.errorOccurred();
+                    log.error("Exception while reading tar file", e);
+                }
+            }
+            scope.complete();
+        }
+    }
+
+    private void processGzipFile(
+            File inputFile,
+            ArrayDeque<FileType> fileTypePath,
+            SourceEntry entry,
+            ExtractionPath extractionPath
+    ) throws IOException, MessagingException {
+        FileType currentFileType = fileTypePath.pollFirst();
+        assert (currentFileType == FileType.GZ);
+        assert (fileTypePath.size() > 0);
+        try (
+                FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                ExtractionPath.Scope scope = extractionPath.push(FileType.GZ, entry);
+                ParallelGzipInputStream inputStream = new ParallelGzipInputStream(channel, bufferPool, threads);
+        ) {
+            long size = channel.size();
+            metrics.expectInput(size);
+            // the progress of a compressed file is the position of the member being read
+            metrics.trackInput(inputStream::getPosition);
+            try {
+                // the position moves member by member, too coarse for a compression ratio
+                processInputStreamBasedOnType(
+                        metrics.meter(ExtractionMetrics.Stage.ZIP_INFLATE, quota.guardEntry(inputStream, quota.openArchive(), null)),
+                        fileTypePath,
+                        new SourceEntry(gzipContentName(entry.name()), 0),
+                        extractionPath
+                );
+            } finally {
+                metrics.untrackInput(size);
+            }
+            scope.complete();
+        } finally {
+            fileTypePath.addFirst(currentFileType);
+        }
+    }
+
+    private void processGzipInputStream(
+            SourceEntry entry,
+            InputStream inputStream,
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath
+    ) throws IOException, MessagingException {
+        assert (fileTypePath.size() > 0);
+        if (log.isDebugEnabled()) {
+            log.debug("processGzipInputStream. fileTypePath : " + fileTypePath);
+        }
+        CountingInputStream compressedStream = new CountingInputStream(CloseShieldInputStream.wrap(inputStream));
+        try (
+                ExtractionPath.Scope scope = extractionPath.push(FileType.GZ, entry);
+                // the enclosing stream is closed by its owner
+                GZIPInputStream gzipInputStream = new GZIPInputStream(compressedStream, bufferSize);
+        ) {
+            processInputStreamBasedOnType(
+                    metrics.meter(ExtractionMetrics.Stage.ZIP_INFLATE, quota.guardEntry(
+                            gzipInputStream,
+                            quota.openArchive(),
+                            compressedStream::getByteCount
+                    )),
+                    fileTypePath,
+                    new SourceEntry(gzipContentName(entry.name()), 0),
+                    extractionPath
+            );
+            scope.complete();
+        }
+    }
+
+    /**
+     * Name of the file compressed by gzip, null when not known.
+     */
+    private static String gzipContentName(String name) {
+        if (name == null) {
+            return null;
+        }
+        if (name.endsWith(".tgz")) {
+            return name.substring(0, name.length() - ".tgz".length()) + ".tar";
+        }
+        if (name.endsWith(".gz")) {
+            return name.substring(0, name.length() - ".gz".length());
+        }
+        return name;
+    }
+
+    private void processMaildir(
+            File directory,
+            ArrayDeque<FileType> fileTypePath,
+            SourceEntry entry,
+            ExtractionPath extractionPath
+    ) throws IOException, MessagingException {
+        FileType currentFileType = fileTypePath.pollFirst();
+        assert (currentFileType == FileType.MAILDIR);
+        assert (fileTypePath.size() > 0);
+        List<File> messageFiles = Maildir.messageFiles(directory);
+        if (log.isDebugEnabled()) {
+            log.debug("processMaildir. messages : " + messageFiles.size());
+        }
+        metrics.archiveOpened();
+        try (
+                ExtractionPath.Scope scope = extractionPath.push(FileType.MAILDIR, entry);
+        ) {
+            // every email is a file of its own, each one becomes a separate task
+            List<ExtractionTaskRunner.ExtractionTask> messageTasks = new ArrayList<>();
+            for (int i = 0; i < messageFiles.size(); i++) {
+                File messageFile = messageFiles.get(i);
+                long length = messageFile.length();
+                SourceEntry messageEntry = new SourceEntry(Maildir.nameOf(directory, messageFile), i, "", -1, length);
+                metrics.entryFound();
+                metrics.expectInput(length);
+                if (isCompleted(extractionPath, fileTypePath.peekFirst(), messageEntry)) {
+                    metrics.inputProcessed(length);
+                    continue;
                 }
+                ExtractionPath messageExtractionPath = extractionPath.copy();
+                ArrayDeque<FileType> messageFileTypePath = fileTypePath.clone();
+                messageTasks.add(() -> {
+                    try (InputStream inputStream = bufferedStreamFactory.readFile(messageFile)) {
+                        processInputStreamBasedOnType(
+                                inputStream,
+                                messageFileTypePath,
+                                messageEntry,
+                                messageExtractionPath
+                        );
+                        markCompleted(messageExtractionPath, messageEntry);
+                    } catch (QuotaExceededException e) {
+                        markFailed(messageExtractionPath, messageEntry);
+                        log.warn("Entry skipped, " + e.getMessage() + " : " + messageEntry.name());
+                    } catch (IOException e) {
+                        markFailed(messageExtractionPath, messageEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading maildir", e);
+                    } catch (MessagingException e) {
+                        markFailed(messageExtractionPath, messageEntry);
+                        metrics.errorOccurred();
+                        log.error("Exception while reading maildir", e);
+                    } finally {
+                        metrics.inputProcessed(length);
+                    }
+                });
             }
+            taskRunner.runAll(messageTasks);
+            scope.complete();
+        } finally {
+            fileTypePath.addFirst(currentFileType);
         }
     }
 
-    private void processEmlInputStream(String fileName, InputStream inputStream, ExtractionPath extractionPath, ArrayDeque<FileType> fileTypePath) throws MessagingException, IOException {
-        log.debug("processEmlInputStream. fileTypePath : " + fileTypePath);
+    private void processEmlInputStream(
+            SourceEntry entry,
+            InputStream inputStream,
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath
+    ) throws MessagingException, IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("processEmlInputStream. fileTypePath : " + fileTypePath);
+        }
+        if (fileTypePath.isEmpty() && headerFilter != null) {
+            inputStream = selectByHeaders(entry, inputStream, extractionPath);
+            if (inputStream == null) {
+                return;
+            }
+        }
         try (
-                Closeable noop = extractionPath.pushEml(fileName);
+                ExtractionPath.Scope scope = extractionPath.pushEml(entry);
         ) {
 
+            if (fileTypePath.isEmpty() && headerIndex != null) {
+                // last level of extraction, only the headers are read
+                indexOutputEml(entry, inputStream, extractionPath);
+                scope.complete();
+                return;
+            }
+
             if (fileTypePath.isEmpty()) {
                 // last level of extraction, write email to output
-                writeOutputEml(inputStream);
+                writeOutputEml(inputStream, extractionPath);
+                scope.complete();
+                return;
+            }
+
+            metrics.messageParsed();
+            CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+            ExtractionMetrics.StageTimer parseTimer = metrics.timer(ExtractionMetrics.Stage.MIME_PARSE);
+            if (mimeEngine == MimeEngine.STREAMING) {
+                parseTimer.start();
+                MimeStreamScanner scanner;
+                try {
+                    scanner = new MimeStreamScanner(countingInputStream, bufferPool);
+                } finally {
+                    parseTimer.stop();
+                }
+                try {
+                    processMessageStreamForAttachments(
+                            scanner,
+                            parseTimer,
+                            extractionPath,
+                            fileTypePath
+                    );
+                } finally {
+                    scanner.close();
+                    parseTimer.finish(countingInputStream.getByteCount());
+                }
             } else {
                 Properties props = new Properties();
                 Session mailSession = Session.getDefaultInstance(props, null);
-                MimeMessage message = new MimeMessage(
-                        mailSession,
-                        inputStream
-                );
+                MimeMessage message;
+                parseTimer.start();
+                try {
+                    message = new MimeMessage(
+                            mailSession,
+                            countingInputStream
+                    );
+                    // the multipart structure is parsed on first access, the parsed content is cached
+                    if (message.isMimeType("multipart/*") && message.getContent() instanceof Multipart multipart) {
+                        multipart.getCount();
+                    }
+                } finally {
+                    parseTimer.stop();
+                    parseTimer.finish(countingInputStream.getByteCount());
+                }
                 processMessageBodyForAttachments(
                         message,
                         extractionPath,
                         fileTypePath
                 );
             }
-
+            scope.complete();
 
         }
     }
@@ -178,42 +1359,103 @@ class FileProcessor {
         assert (fileTypePath.size() > 0);
         if (message.isMimeType("multipart/*") && message.getContent() instanceof Multipart multipart) {
             // process multipart message
-            log.debug("Multipart in mail, part count : " + multipart.getCount());
+            if (log.isDebugEnabled()) {
+                log.debug("Multipart in mail, part count : " + multipart.getCount());
+            }
             List<BodyPart> messageBodyParts = MessageUtils.toBodyParts(multipart);
             FileType currentFileType = fileTypePath.pollFirst();
 
             try {
-                switch (currentFileType) {
-                    case ZIP -> {
-                        for (BodyPart bodyPart : messageBodyParts) {
+                // the message is parsed in memory, so every attachment can be processed as a separate task
+                List<ExtractionTaskRunner.ExtractionTask> partTasks = new ArrayList<>();
+                for (int i = 0; i < messageBodyParts.size(); i++) {
+                    BodyPart bodyPart = messageBodyParts.get(i);
+                    SourceEntry partEntry = new SourceEntry(bodyPart.getFileName(), i);
+                    if (isCompleted(extractionPath, currentFileType, partEntry)) {
+                        continue;
+                    }
+                    ExtractionPath partExtractionPath = extractionPath.copy();
+                    ArrayDeque<FileType> partFileTypePath = fileTypePath.clone();
+                    switch (currentFileType) {
+                        case ZIP -> {
                             if (MessageUtils.isZip(bodyPart)) {
-                                try (InputStream inputStream = bodyPart.getInputStream()) {
-                                    processZipInputStream(
-                                            bodyPart.getFileName(),
-                                            inputStream,
-                                            extractionPath,
-                                            fileTypePath
-                                    );
-                                }
+                                partTasks.add(attachmentTask(partExtractionPath, partEntry, () -> {
+                                    try (InputStream inputStream = meterAttachment(bodyPart.getInputStream())) {
+                                        processZipInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                partExtractionPath,
+                                                partFileTypePath
+                                        );
+                                    }
+                                    markCompleted(partExtractionPath, partEntry);
+                                }));
                             }
                         }
-                    }
-                    case EML -> {
-                        for (BodyPart bodyPart : messageBodyParts) {
+                        case EML -> {
                             if (MessageUtils.isMessage(bodyPart)) {
-                                try (InputStream inputStream = bodyPart.getInputStream()) {
-                                    processEmlInputStream(
-                                            bodyPart.getFileName(),
-                                            inputStream,
-                                            extractionPath,
-                                            fileTypePath
-                                    );
-                                }
+                                partTasks.add(attachmentTask(partExtractionPath, partEntry, () -> {
+                                    try (InputStream inputStream = meterAttachment(bodyPart.getInputStream())) {
+                                        processEmlInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                partExtractionPath,
+                                                partFileTypePath
+                                        );
+                                    }
+                                    markCompleted(partExtractionPath, partEntry);
+                                }));
                             }
                         }
+                        case MBOX -> {
+                            if (MessageUtils.isMbox(bodyPart)) {
+                                partTasks.add(attachmentTask(partExtractionPath, partEntry, () -> {
+                                    try (InputStream inputStream = meterAttachment(bodyPart.getInputStream())) {
+                                        processMboxInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                partExtractionPath,
+                                                partFileTypePath
+                                        );
+                                    }
+                                    markCompleted(partExtractionPath, partEntry);
+                                }));
+                            }
+                        }
+                        case TAR -> {
+                            if (MessageUtils.isTar(bodyPart)) {
+                                partTasks.add(attachmentTask(partExtractionPath, partEntry, () -> {
+                                    try (InputStream inputStream = meterAttachment(bodyPart.getInputStream())) {
+                                        processTarInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                partExtractionPath,
+                                                partFileTypePath
+                                        );
+                                    }
+                                    markCompleted(partExtractionPath, partEntry);
+                                }));
+                            }
+                        }
+                        case GZ -> {
+                            if (MessageUtils.isGzip(bodyPart)) {
+                                partTasks.add(attachmentTask(partExtractionPath, partEntry, () -> {
+                                    try (InputStream inputStream = meterAttachment(bodyPart.getInputStream())) {
+                                        processGzipInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                partExtractionPath,
+                                                partFileTypePath
+                                        );
+                                    }
+                                    markCompleted(partExtractionPath, partEntry);
+                                }));
+                            }
+                        }
+                        default -> throw new IllegalArgumentException("Unsupported file type : " + currentFileType);
                     }
-                    default -> throw new IllegalArgumentException("Unsupported file type : " + currentFileType);
                 }
+                taskRunner.runAll(partTasks);
             } finally {
                 fileTypePath.addFirst(currentFileType);
             }
@@ -229,15 +1471,339 @@ class FileProcessor {
 
     }
 
-    private void writeOutputEml(InputStream inputStream) throws IOException {
-        String outputFileName = outputFileNameGenerator.generateNewOutputFileName();
-        File emlOutputFile = new File(outputPath.toFile(), outputFileName);
-        log.info("WRITING : " + emlOutputFile.getAbsolutePath());
-        try (OutputStream out = bufferedStreamFactory.writeFile(emlOutputFile)) {
-            IOUtils.copy(inputStream, out);
-            IOUtils.closeQuietly(out);
+    private void processMessageStreamForAttachments(
+            MimeStreamScanner scanner,
+            ExtractionMetrics.StageTimer parseTimer,
+            ExtractionPath extractionPath,
+            ArrayDeque<FileType> fileTypePath
+    ) throws MessagingException, IOException {
+        assert (fileTypePath.size() > 0);
+        if (scanner.isMimeType("multipart/*")) {
+            // parts are read one after another straight from the message stream
+            FileType currentFileType = fileTypePath.pollFirst();
+            try {
+                MimeStreamScanner.Part part;
+                int partOrdinal = 0;
+                while ((part = nextPart(scanner, parseTimer)) != null) {
+                    SourceEntry partEntry = new SourceEntry(part.getFileName(), partOrdinal++);
+                    if (isCompleted(extractionPath, currentFileType, partEntry)) {
+                        continue;
+                    }
+                    try {
+                        switch (currentFileType) {
+                            case ZIP -> {
+                                if (MessageUtils.isZip(part)) {
+                                    try (InputStream inputStream = meterAttachment(part.getInputStream())) {
+                                        processZipInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                extractionPath,
+                                                fileTypePath
+                                        );
+                                    }
+                                    markCompleted(extractionPath, partEntry);
+                                }
+                            }
+                            case EML -> {
+                                if (MessageUtils.isMessage(part)) {
+                                    try (InputStream inputStream = meterAttachment(part.getInputStream())) {
+                                        processEmlInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                extractionPath,
+                                                fileTypePath
+                                        );
+                                    }
+                                    markCompleted(extractionPath, partEntry);
+                                }
+                            }
+                            case MBOX -> {
+                                if (MessageUtils.isMbox(part)) {
+                                    try (InputStream inputStream = meterAttachment(part.getInputStream())) {
+                                        processMboxInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                extractionPath,
+                                                fileTypePath
+                                        );
+                                    }
+                                    markCompleted(extractionPath, partEntry);
+                                }
+                            }
+                            case TAR -> {
+                                if (MessageUtils.isTar(part)) {
+                                    try (InputStream inputStream = meterAttachment(part.getInputStream())) {
+                                        processTarInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                extractionPath,
+                                                fileTypePath
+                                        );
+                                    }
+                                    markCompleted(extractionPath, partEntry);
+                                }
+                            }
+                            case GZ -> {
+                                if (MessageUtils.isGzip(part)) {
+                                    try (InputStream inputStream = meterAttachment(part.getInputStream())) {
+                                        processGzipInputStream(
+                                                partEntry,
+                                                inputStream,
+                                                extractionPath,
+                                                fileTypePath
+                                        );
+                                    }
+                                    markCompleted(extractionPath, partEntry);
+                                }
+                            }
+                            default -> throw new IllegalArgumentException("Unsupported file type : " + currentFileType);
+                        }
+                    } catch (QuotaExceededException e) {
+                        attachmentSkipped(extractionPath, partEntry, e);
+                    }
+                }
+            } finally {
+                fileTypePath.addFirst(currentFileType);
+            }
+        } else if (MessageUtils.isText(scanner)) {
+            // do nothing, text content is not attachment
+        } else if (MessageUtils.isMessage(scanner)) {
+            // email is not attachment
+        } else {
+            log.warn("Content type unknown : " + scanner.getContentType());
+        }
+    }
+
+    /**
+     * Task processing an attachment, a limit reached in it skips the attachment and nothing else.
+     */
+    private ExtractionTaskRunner.ExtractionTask attachmentTask(
+            ExtractionPath extractionPath,
+            SourceEntry partEntry,
+            ExtractionTaskRunner.ExtractionTask task
+    ) {
+        return () -> {
+            try {
+                task.run();
+            } catch (QuotaExceededException e) {
+                attachmentSkipped(extractionPath, partEntry, e);
+            }
+        };
+    }
+
+    private void attachmentSkipped(ExtractionPath extractionPath, SourceEntry partEntry, QuotaExceededException e) {
+        markFailed(extractionPath, partEntry);
+        log.warn("Entry skipped, " + e.getMessage() + " : " + partEntry.name());
+    }
+
+    private static MimeStreamScanner.Part nextPart(
+            MimeStreamScanner scanner,
+            ExtractionMetrics.StageTimer parseTimer
+    ) throws IOException, MessagingException {
+        parseTimer.start();
+        try {
+            return scanner.nextPart();
+        } finally {
+            parseTimer.stop();
         }
+    }
+
+    private InputStream meterEntry(InputStream inputStream) {
+        if (inputStream instanceof FileRangeInputStream) {
+            // stored entry, nothing to inflate and it may be copied without reading
+            return inputStream;
+        }
+        return metrics.meter(ExtractionMetrics.Stage.ZIP_INFLATE, inputStream);
+    }
 
+    private InputStream meterAttachment(InputStream inputStream) {
+        return metrics.meter(ExtractionMetrics.Stage.ATTACHMENT_DECODE, inputStream);
+    }
+
+    private void writeOutputEml(InputStream inputStream, ExtractionPath extractionPath) throws IOException {
+        if (outputSink != null) {
+            writeOutputEntry(inputStream, extractionPath);
+            return;
+        }
+        File emlOutputFile;
+        MessageDeduplicator.FinalFile finalFile = null;
+        // file holding the email once written, unknown until then for a possible duplicate
+        AtomicReference<File> recordedFile = new AtomicReference<>();
+        String pathName = outputNaming == OutputNaming.PATH ? outputLayout.nameOf(extractionPath) : null;
+        if (outputNaming == OutputNaming.CONTENT) {
+            // the email gets its name once its content is known
+            emlOutputFile = new File(outputPath.toFile(), ".content" + temporaryFileCounter.incrementAndGet() + ".eml");
+        } else if (deferredOutputFileNames != null) {
+            emlOutputFile = deferredOutputFileNames.reserve(extractionPath);
+            recordedFile.set(emlOutputFile);
+        } else if (messageDeduplicator != null) {
+            // the email gets its name only if it is not a duplicate
+            emlOutputFile = new File(outputPath.toFile(), ".dedup" + temporaryFileCounter.incrementAndGet() + ".eml");
+            finalFile = () -> {
+                File file = newOutputFile(pathName);
+                recordedFile.set(file);
+                if (journal != null) {
+                    journal.rename(emlOutputFile.getName(), outputLayout.nameOf(file));
+                }
+                return file;
+            };
+        } else {
+            emlOutputFile = newOutputFile(pathName);
+            recordedFile.set(emlOutputFile);
+        }
+        String key = extractionPath.toKey();
+        extractionPath.output(outputLayout.nameOf(emlOutputFile));
+        if (log.isDebugEnabled()) {
+            log.debug("WRITING : " + emlOutputFile.getAbsolutePath());
+        }
+        if (messageDeduplicator != null
+                && inputStream instanceof FileRangeInputStream range
+                && range.isUnread()) {
+            // the bytes can be read twice, a duplicate is found before anything is written
+            String hash;
+            try (FileRangeInputStream content = range.prefix(range.getLength())) {
+                hash = DigestUtils.sha256Hex(content);
+            }
+            MessageDeduplicator.FinalFile linkFile = finalFile != null ? finalFile : () -> emlOutputFile;
+            if (messageDeduplicator.skipDuplicate(hash, range.getLength(), linkFile, extractionPath.toOrdinals())) {
+                // the link made in LINK mode
+                outputDurability.recordFile(recordedFile.get());
+                return;
+            }
+        }
+        if (messageDeduplicator == null
+                && outputNaming != OutputNaming.CONTENT
+                && outputCompressor == null
+                && inputStream instanceof FileRangeInputStream fileRange
+                && fileRange.isUnread()) {
+            // the message is stored verbatim in the input file, copy the byte range file to file
+            if (log.isDebugEnabled()) {
+                log.debug("Transferring " + fileRange.getLength() + " bytes without copying");
+            }
+            bufferedStreamFactory.transferFile(fileRange, emlOutputFile);
+            outputDurability.recordFile(emlOutputFile);
+            if (manifest != null) {
+                manifest.recordOutput(key, emlOutputFile);
+            }
+            return;
+        }
+        MessageDeduplicator.FinalFile dedupFinalFile = finalFile;
+        int[] ordinals = extractionPath.toOrdinals();
+        OutputPipeline.OutputOpener outputOpener = () -> {
+            EmailOutputStream out = bufferedStreamFactory.writeEmailFile(emlOutputFile);
+            if (outputNaming == OutputNaming.CONTENT) {
+                out = outputLayout.wrapContentNamed(out, emlOutputFile, file -> {
+                    recordedFile.set(file);
+                    if (journal != null) {
+                        journal.rename(emlOutputFile.getName(), outputLayout.nameOf(file));
+                    }
+                });
+            }
+            if (messageDeduplicator != null) {
+                out = messageDeduplicator.wrap(out, emlOutputFile, dedupFinalFile, ordinals);
+            }
+            out = outputDurability.wrap(out, recordedFile::get);
+            if (manifest != null) {
+                out = manifest.wrap(out, key, recordedFile::get);
+            }
+            return out;
+        };
+        writeOutput(outputOpener, inputStream, key);
+    }
+
+    /**
+     * Checks the headers of an email to be written against the header conditions, reading no more than its
+     * first bytes: an email filtered out is neither parsed nor written.
+     *
+     * @return the stream to write the email from, null if it is filtered out
+     */
+    private InputStream selectByHeaders(SourceEntry entry, InputStream inputStream, ExtractionPath extractionPath) throws IOException, MessagingException {
+        InternetHeaders headers;
+        InputStream selected;
+        if (inputStream instanceof FileRangeInputStream fileRange && fileRange.isUnread()) {
+            // headers read apart, the email itself may still be copied file to file
+            try (FileRangeInputStream prefix = fileRange.prefix(HeaderFilter.HEADER_PREFIX_LIMIT)) {
+                headers = new InternetHeaders(prefix);
+            }
+            selected = inputStream;
+        } else {
+            BufferedInputStream buffered = new BufferedInputStream(inputStream, bufferPool.getBufferSize());
+            buffered.mark(HeaderFilter.HEADER_PREFIX_LIMIT);
+            // the header parser marks the stream it reads, the mark to reset to must stay
+            headers = new InternetHeaders(new BoundedInputStream(buffered, HeaderFilter.HEADER_PREFIX_LIMIT) {
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+
+                @Override
+                public synchronized void mark(int readlimit) {
+                }
+            });
+            buffered.reset();
+            selected = buffered;
+        }
+        String reason = headerFilter.reject(headers);
+        if (reason == null) {
+            return selected;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Email filtered out, " + reason + " : " + entry.name());
+        }
+        metrics.entryFiltered();
+        extractionPath.skip(FileType.EML, entry);
+        return null;
+    }
+
+    private void indexOutputEml(SourceEntry entry, InputStream inputStream, ExtractionPath extractionPath) throws IOException, MessagingException {
+        InternetHeaders headers;
+        // the scanner reads a buffer at most past the headers, the rest of the stream is left unread
+        try (MimeStreamScanner scanner = new MimeStreamScanner(inputStream, bufferPool)) {
+            headers = scanner.getHeaders();
+        }
+        headerIndex.add(extractionPath.toSingleLine(), headers, entry.size());
+        metrics.emailIndexed();
+    }
+
+    /**
+     * File of the next email, named after its extraction path when {@code pathName} is set.
+     */
+    private File newOutputFile(String pathName) throws IOException {
+        if (pathName != null) {
+            return outputLayout.fileOf(pathName);
+        }
+        return new File(outputPath.toFile(), outputFileNameGenerator.generateNewOutputFileName());
+    }
+
+    private void writeOutputEntry(InputStream inputStream, ExtractionPath extractionPath) throws IOException {
+        String name = outputNaming == OutputNaming.PATH
+                ? outputLayout.nameOf(extractionPath)
+                : outputFileNameGenerator.generateNewOutputFileName();
+        extractionPath.output(name);
+        if (log.isDebugEnabled()) {
+            log.debug("WRITING : " + name);
+        }
+        writeOutput(() -> bufferedStreamFactory.writeEntry(outputSink, name), inputStream, extractionPath.toKey());
+    }
+
+    private void writeOutput(OutputPipeline.OutputOpener outputOpener, InputStream inputStream, String key) throws IOException {
+        if (outputPipeline != null) {
+            outputPipeline.write(outputOpener, inputStream, () -> {
+                // stopped on a writer thread, possibly after the traversal marked the email completed
+                if (manifest != null) {
+                    manifest.markFailed(key);
+                }
+            });
+            return;
+        }
+        byte[] buffer = bufferPool.acquireArray();
+        try (EmailOutputStream out = outputOpener.open()) {
+            IOUtils.copyLarge(inputStream, out, buffer);
+            // read to the end without failing, an email stopped or found damaged is dropped on close instead
+            out.commit();
+        } finally {
+            bufferPool.releaseArray(buffer);
+        }
     }
 
 
@@ -0,0 +1,172 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads a fixed byte range of a file using positional reads, so several streams can share one channel.
+ * Closing the stream closes the channel only when the stream owns it.
+ * <p>
+ * The read buffer comes from a {@link BufferPool} on the first read and goes back to it on close, a range
+ * copied with {@link #transferTo(WritableByteChannel)} never takes one.
+ */
+class FileRangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+
+    private final long start;
+
+    private final long end;
+
+    private static final ByteBuffer NO_BUFFER = ByteBuffer.allocate(0);
+
+    private final BufferPool bufferPool;
+
+    private final boolean ownsChannel;
+
+    private ByteBuffer buffer = NO_BUFFER;
+
+    private long position;
+
+    private boolean closed;
+
+    FileRangeInputStream(FileChannel channel, long start, long length, BufferPool bufferPool) {
+        this(channel, start, length, bufferPool, false);
+    }
+
+    FileRangeInputStream(FileChannel channel, long start, long length, BufferPool bufferPool, boolean ownsChannel) {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.start = start;
+        this.end = start + length;
+        this.position = start;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        long fromBuffer = Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + (int) fromBuffer);
+        long fromChannel = Math.min(n - fromBuffer, end - position);
+        position += fromChannel;
+        return fromBuffer + fromChannel;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, buffer.remaining() + (end - position));
+    }
+
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (position >= end) {
+            return false;
+        }
+        if (buffer == NO_BUFFER) {
+            buffer = bufferPool.acquire();
+        }
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Unexpected end of file at offset " + position + ", expected data up to " + end);
+        }
+        position += buffer.remaining();
+        return true;
+    }
+
+    /**
+     * True while nothing has been read, the whole range can then be copied with {@link #transferTo(WritableByteChannel)}.
+     */
+    boolean isUnread() {
+        return position == start && !buffer.hasRemaining();
+    }
+
+    /**
+     * Bytes consumed from the range so far, including bytes buffered but not yet read.
+     */
+    long getPosition() {
+        return position - start;
+    }
+
+    long getLength() {
+        return end - start;
+    }
+
+    /**
+     * New stream over the first bytes of the range, read apart from this one which stays unread.
+     */
+    FileRangeInputStream prefix(long length) {
+        return new FileRangeInputStream(channel, start, Math.min(length, end - start), bufferPool);
+    }
+
+    /**
+     * Copies the rest of the range to the target channel, letting the kernel move the bytes when both
+     * sides are files.
+     */
+    long transferTo(WritableByteChannel target) throws IOException {
+        if (buffer.hasRemaining()) {
+            throw new IllegalStateException("Range is partially buffered");
+        }
+        long transferred = 0;
+        while (position < end) {
+            long count = channel.transferTo(position, end - position, target);
+            if (count <= 0) {
+                throw new IOException("Unexpected end of file at offset " + position + ", expected data up to " + end);
+            }
+            position += count;
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (buffer != NO_BUFFER) {
+            bufferPool.release(buffer);
+            buffer = NO_BUFFER;
+        }
+        if (ownsChannel) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.example.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a single gzip member, starting at its header, and checks its trailer. Unlike a
+ * {@link java.util.zip.GZIPInputStream} it stops at the end of the member and tells where the member ended,
+ * so the next member can be read from there by someone else.
+ * <p>
+ * The compressed bytes are read from the given stream, which is closed with this one, through a buffer
+ * taken from a {@link BufferPool} and given back on close.
+ */
+class GzipMemberInputStream extends InputStream {
+
+    private static final int MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    private static final int RESERVED = 0xE0;
+
+    private final InputStream in;
+
+    private final long start;
+
+    private final BufferPool bufferPool;
+
+    private final byte[] input;
+
+    private final Inflater inflater = new Inflater(true);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] single = new byte[1];
+
+    private int headerLength = 0;
+
+    /**
+     * Bytes of {@link #input} last given to the inflater.
+     */
+    private int inputLength = 0;
+
+    private long end = -1;
+
+    private boolean closed = false;
+
+    /**
+     * @param in    compressed bytes from the member header on
+     * @param start position of the member header in the file, for {@link #getEnd()}
+     */
+    GzipMemberInputStream(InputStream in, long start, BufferPool bufferPool) throws IOException {
+        this.in = in;
+        this.start = start;
+        this.bufferPool = bufferPool;
+        this.input = bufferPool.acquireArray();
+        try {
+            readHeader();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether the bytes look like a gzip member header: magic, deflate and no reserved flags.
+     */
+    static boolean isHeader(byte b0, byte b1, byte method, byte flags) {
+        return ((b1 & 0xFF) << 8 | (b0 & 0xFF)) == MAGIC && method == 8 && (flags & RESERVED) == 0;
+    }
+
+    /**
+     * Position right after the member trailer, once the member was read to its end.
+     */
+    long getEnd() {
+        return end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int count = read(single, 0, 1);
+        return count < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (end >= 0) {
+            return -1;
+        }
+        try {
+            while (true) {
+                int count = inflater.inflate(b, off, len);
+                if (count > 0) {
+                    crc.update(b, off, count);
+                    return count;
+                }
+                if (inflater.finished()) {
+                    readTrailer();
+                    return -1;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("Gzip member needs a preset dictionary");
+                }
+                if (inflater.needsInput()) {
+                    int read = in.read(input, 0, input.length);
+                    if (read < 0) {
+                        throw new EOFException("Unexpected end of gzip member");
+                    }
+                    inflater.setInput(input, 0, read);
+                    inputLength = read;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid gzip member at " + start + " : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inflater.end();
+        bufferPool.releaseArray(input);
+        in.close();
+    }
+
+    private void readHeader() throws IOException {
+        byte[] fixed = readHeaderBytes(10);
+        if (!isHeader(fixed[0], fixed[1], fixed[2], fixed[3])) {
+            throw new ZipException("Not in GZIP format at : " + start);
+        }
+        int flags = fixed[3] & 0xFF;
+        if ((flags & FEXTRA) != 0) {
+            byte[] length = readHeaderBytes(2);
+            readHeaderBytes((length[1] & 0xFF) << 8 | (length[0] & 0xFF));
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            readHeaderBytes(2);
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        // the inflater may hold the start of the trailer, or already more
+        int unused = inflater.getRemaining();
+        byte[] trailer = new byte[8];
+        int fromInput = Math.min(unused, trailer.length);
+        System.arraycopy(input, inputLength - unused, trailer, 0, fromInput);
+        if (fromInput < trailer.length) {
+            byte[] rest = readFully(trailer.length - fromInput);
+            System.arraycopy(rest, 0, trailer, fromInput, rest.length);
+        }
+        long expectedCrc = readInt(trailer, 0);
+        long expectedSize = readInt(trailer, 4);
+        if (expectedCrc != crc.getValue()) {
+            throw new ZipException("Corrupt gzip member at " + start + ", CRC mismatch");
+        }
+        if (expectedSize != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+            throw new ZipException("Corrupt gzip member at " + start + ", size mismatch");
+        }
+        end = start + headerLength + inflater.getBytesRead() + trailer.length;
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    private byte[] readHeaderBytes(int length) throws IOException {
+        headerLength += length;
+        return readFully(length);
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of gzip header");
+            }
+            headerLength++;
+        } while (b != 0);
+    }
+
+    private static long readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL)
+                | (bytes[offset + 1] & 0xFFL) << 8
+                | (bytes[offset + 2] & 0xFFL) << 16
+                | (bytes[offset + 3] & 0xFFL) << 24;
+    }
+}
@@ -0,0 +1,215 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MailDateFormat;
+
+/**
+ * Selects the emails to write from their headers, read from the start of the email before its body.
+ * <p>
+ * Every condition must hold. A condition is a header name, an operator and a value:
+ * <ul>
+ *     <li>{@code Subject~invoice} the header matches the regular expression somewhere, ignoring case</li>
+ *     <li>{@code Subject=invoice} the header is the value, ignoring case and angle brackets</li>
+ *     <li>{@code From=alice@example.com} for an address header, From, To, Cc, Bcc, Reply-To or Sender, one of
+ *     its addresses is the value, ignoring case</li>
+ *     <li>{@code Message-ID=@ids.txt} the header is one of the values listed in the file, one per line</li>
+ *     <li>{@code !~} and {@code !=} hold when the header does not match, or is missing</li>
+ *     <li>{@code Date>=2021-09-01}, with {@code <}, {@code <=}, {@code >} and {@code >=}, compares the date of
+ *     the email to an ISO date or date-time, UTC unless it has an offset</li>
+ * </ul>
+ * Header values are unfolded and their encoded words decoded first. A missing header or an unreadable date
+ * fails every condition but the negated ones.
+ */
+class HeaderFilter {
+
+    /**
+     * Bytes read at the start of an email to find its headers, headers past them are not seen.
+     */
+    static final int HEADER_PREFIX_LIMIT = 64 * 1024;
+
+    private static final Set<String> ADDRESS_HEADERS = Set.of("from", "to", "cc", "bcc", "reply-to", "sender");
+
+    private static final Pattern CONDITION = Pattern.compile("\\s*([A-Za-z0-9-]+)\\s*(!~|!=|<=|>=|~|=|<|>)\\s*(.*)", Pattern.DOTALL);
+
+    private final List<Condition> conditions;
+
+    HeaderFilter(List<String> conditions) {
+        List<Condition> parsed = new ArrayList<>(conditions.size());
+        for (String condition : conditions) {
+            parsed.add(parse(condition));
+        }
+        this.conditions = parsed;
+    }
+
+    boolean isAcceptAll() {
+        return conditions.isEmpty();
+    }
+
+    /**
+     * Why the email is filtered out, null when it is written.
+     */
+    String reject(InternetHeaders headers) {
+        for (Condition condition : conditions) {
+            if (!condition.test(headers)) {
+                return "not " + condition.text();
+            }
+        }
+        return null;
+    }
+
+    private interface Test {
+        boolean test(String value);
+    }
+
+    private record Condition(String text, String header, boolean negated, Test test) {
+
+        boolean test(InternetHeaders headers) {
+            String value = MessageUtils.decodedHeader(headers, header);
+            boolean matches = value != null && test.test(value);
+            return negated != matches;
+        }
+    }
+
+    private static Condition parse(String text) {
+        Matcher matcher = CONDITION.matcher(text);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Header condition should be HEADER, an operator and a value : " + text);
+        }
+        String header = matcher.group(1);
+        String operator = matcher.group(2);
+        String operand = matcher.group(3).strip();
+        boolean negated = operator.startsWith("!");
+        return switch (operator) {
+            case "~", "!~" -> {
+                Pattern pattern;
+                try {
+                    pattern = Pattern.compile(operand, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid regular expression in header condition : " + text, e);
+                }
+                yield new Condition(text, header, negated, value -> pattern.matcher(value).find());
+            }
+            case "=", "!=" -> {
+                Set<String> values = new HashSet<>();
+                if (operand.startsWith("@")) {
+                    for (String line : readLines(Path.of(operand.substring(1)))) {
+                        if (!line.isBlank()) {
+                            values.add(normalize(line));
+                        }
+                    }
+                } else {
+                    values.add(normalize(operand));
+                }
+                if (ADDRESS_HEADERS.contains(header.toLowerCase(Locale.ROOT))) {
+                    yield new Condition(text, header, negated, value -> values.contains(normalize(value))
+                            || containsAddress(values, value));
+                }
+                yield new Condition(text, header, negated, value -> values.contains(normalize(value)));
+            }
+            default -> {
+                if (!header.equalsIgnoreCase("Date")) {
+                    throw new IllegalArgumentException("Only the Date header can be compared with " + operator + " : " + text);
+                }
+                Instant bound = parseInstant(operand, text);
+                yield new Condition(text, header, false, value -> {
+                    Instant date = parseMailDate(value);
+                    if (date == null) {
+                        return false;
+                    }
+                    int comparison = date.compareTo(bound);
+                    return switch (operator) {
+                        case "<" -> comparison < 0;
+                        case "<=" -> comparison <= 0;
+                        case ">" -> comparison > 0;
+                        default -> comparison >= 0;
+                    };
+                });
+            }
+        };
+    }
+
+    /**
+     * Value compared for equality, message ids are written with or without their angle brackets.
+     */
+    private static String normalize(String value) {
+        String trimmed = value.strip();
+        if (trimmed.length() >= 2 && trimmed.startsWith("<") && trimmed.endsWith(">")) {
+            trimmed = trimmed.substring(1, trimmed.length() - 1);
+        }
+        return trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * True if one of the addresses of the header is one of the values, a display name or several
+     * recipients do not hide it.
+     */
+    private static boolean containsAddress(Set<String> values, String value) {
+        InternetAddress[] addresses;
+        try {
+            addresses = InternetAddress.parseHeader(value, false);
+        } catch (AddressException e) {
+            return false;
+        }
+        for (InternetAddress address : addresses) {
+            if (address.getAddress() != null && values.contains(normalize(address.getAddress()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Instant parseInstant(String value, String condition) {
+        try {
+            if (value.length() == 10) {
+                return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+            try {
+                return OffsetDateTime.parse(value).toInstant();
+            } catch (DateTimeParseException e) {
+                return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC);
+            }
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Date in header condition should be an ISO date or date-time : " + condition, e);
+        }
+    }
+
+    private static Instant parseMailDate(String value) {
+        try {
+            // not thread safe, and cheap to create
+            return new MailDateFormat().parse(value).toInstant();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static List<String> readLines(Path file) {
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the values of a header condition : " + file, e);
+        }
+    }
+}
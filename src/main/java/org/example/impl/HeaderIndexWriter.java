@@ -0,0 +1,108 @@
+package org.example.impl;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.mail.internet.InternetHeaders;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * CSV catalog of the extracted emails, one line per email with its extraction path, size and main headers.
+ * Only the headers of an email are read to index it, its body is never read.
+ * <p>
+ * Fields follow RFC 4180: they are quoted when they hold a comma, a quote or a line break. Encoded words
+ * of the headers are decoded, a size unknown without reading the body is left empty. Lines follow the
+ * order emails are indexed in.
+ */
+class HeaderIndexWriter implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(HeaderIndexWriter.class);
+
+    static final String HEADER_LINE = "path,message_id,date,from,to,subject,size";
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Writer out;
+
+    private final boolean standardOutput;
+
+    private boolean closed = false;
+
+    HeaderIndexWriter(Path path) throws IOException {
+        this.standardOutput = OutputSink.STANDARD_OUTPUT.equals(path.toString());
+        if (standardOutput) {
+            // System.out is pointed at System.err by the extract command, printing does not end up in the index
+            this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+            log.info("Writing the email index to standard output");
+        } else {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+            log.info("Writing the email index to : " + path);
+        }
+        out.write(HEADER_LINE);
+        out.write("\r\n");
+    }
+
+    /**
+     * @param size bytes of the email, negative if unknown
+     */
+    void add(String path, InternetHeaders headers, long size) throws IOException {
+        StringBuilder line = new StringBuilder();
+        appendField(line, path);
+        appendField(line, header(headers, "Message-ID"));
+        appendField(line, header(headers, "Date"));
+        appendField(line, header(headers, "From"));
+        appendField(line, header(headers, "To"));
+        appendField(line, header(headers, "Subject"));
+        line.append(size >= 0 ? String.valueOf(size) : "").append("\r\n");
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Email index already closed, cannot add : " + path);
+            }
+            out.write(line.toString());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.flush();
+        } finally {
+            // standard output stays open for the JVM
+            if (!standardOutput) {
+                out.close();
+            }
+        }
+    }
+
+    private static String header(InternetHeaders headers, String name) {
+        String value = MessageUtils.decodedHeader(headers, name);
+        return value != null ? value : "";
+    }
+
+    private static void appendField(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            line.append(value);
+        } else {
+            line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+        line.append(',');
+    }
+}
@@ -0,0 +1,230 @@
+package org.example.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.example.FileType;
+import org.example.JournalFormat;
+
+import picocli.CommandLine;
+
+/**
+ * Renders an {@link ExtractionJournal}, one line per extracted, failed or skipped entry. Entries still
+ * open at the end of the journal, after a crash, are reported as incomplete.
+ */
+@CommandLine.Command(
+        name = JournalReader.COMMAND,
+        mixinStandardHelpOptions = true,
+        description = "Print an extraction journal written with --journal"
+)
+public class JournalReader implements Callable<Integer> {
+
+    public static final String COMMAND = "read-journal";
+
+    private static final String INCOMPLETE = "INCOMPLETE";
+
+    @CommandLine.Parameters(index = "0", description = "The journal file to read.")
+    private File journalFile;
+
+    @CommandLine.Option(names = {"--format"}, description = "Output format : ${COMPLETION-CANDIDATES}", required = false)
+    private JournalFormat format = JournalFormat.TEXT;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    private record Node(int parent, FileType fileType, String name, long ordinal, long offset, long size, long startMillis) {
+    }
+
+    private final List<String> names = new ArrayList<>();
+
+    private final Map<Integer, Node> openNodes = new LinkedHashMap<>();
+
+    private final Map<Integer, String> outputs = new HashMap<>();
+
+    private final Map<String, String> renames = new HashMap<>();
+
+    private PrintWriter out;
+
+    @Override
+    public Integer call() throws IOException {
+        out = spec.commandLine().getOut();
+        try {
+            // output files are renamed at the end of parallel runs, the final names are needed first
+            read(false);
+            read(true);
+            for (Map.Entry<Integer, Node> entry : openNodes.entrySet()) {
+                print(entry.getKey(), entry.getValue(), INCOMPLETE, -1);
+            }
+        } finally {
+            out.flush();
+        }
+        return 0;
+    }
+
+    private void read(boolean render) throws IOException {
+        names.clear();
+        names.add(null);
+        openNodes.clear();
+        outputs.clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile.toPath())))) {
+            byte[] magic = new byte[ExtractionJournal.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, ExtractionJournal.MAGIC)) {
+                throw new IOException("Not an extraction journal : " + journalFile);
+            }
+            in.readLong();
+            int tag;
+            while ((tag = in.read()) >= 0) {
+                try {
+                    readRecord(in, (byte) tag, render);
+                } catch (EOFException e) {
+                    // the writer stopped in the middle of a record
+                    break;
+                }
+            }
+        }
+    }
+
+    private void readRecord(DataInputStream in, byte tag, boolean render) throws IOException {
+        switch (tag) {
+            case ExtractionJournal.NAME -> {
+                readVarLong(in);
+                names.add(readString(in));
+            }
+            case ExtractionJournal.ENTER -> {
+                int node = (int) readVarLong(in);
+                int parent = (int) readVarLong(in);
+                FileType fileType = FileType.values()[in.readUnsignedByte()];
+                String name = names.get((int) readVarLong(in));
+                long ordinal = readVarLong(in);
+                long offset = readSignedVarLong(in);
+                long size = readSignedVarLong(in);
+                long startMillis = readVarLong(in);
+                openNodes.put(node, new Node(parent, fileType, name, ordinal, offset, size, startMillis));
+            }
+            case ExtractionJournal.LEAVE -> {
+                int node = (int) readVarLong(in);
+                ExtractionJournal.Outcome outcome = ExtractionJournal.Outcome.values()[in.readUnsignedByte()];
+                long endMillis = readVarLong(in);
+                Node entry = openNodes.get(node);
+                if (render && entry != null) {
+                    print(node, entry, outcome.name(), endMillis - entry.startMillis());
+                }
+                openNodes.remove(node);
+                outputs.remove(node);
+            }
+            case ExtractionJournal.OUTPUT -> {
+                int node = (int) readVarLong(in);
+                outputs.put(node, readString(in));
+            }
+            case ExtractionJournal.RENAME -> {
+                String fileName = readString(in);
+                String newFileName = readString(in);
+                if (!render) {
+                    renames.put(fileName, newFileName);
+                }
+            }
+            default -> throw new IOException("Unknown journal record : " + tag);
+        }
+    }
+
+    private void print(int node, Node entry, String outcome, long durationMillis) {
+        List<String> path = new ArrayList<>();
+        for (Node current = entry; current != null; current = openNodes.get(current.parent())) {
+            path.add(0, current.fileType() + ":" + current.name());
+        }
+        String output = outputs.get(node);
+        if (output != null) {
+            output = renames.getOrDefault(output, output);
+        }
+        if (format == JournalFormat.JSON) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"outcome\":\"").append(outcome).append("\",\"path\":[");
+            for (int i = 0; i < path.size(); i++) {
+                sb.append(i == 0 ? "" : ",").append(quote(path.get(i)));
+            }
+            sb.append("],\"ordinal\":").append(entry.ordinal());
+            sb.append(",\"offset\":").append(entry.offset());
+            sb.append(",\"size\":").append(entry.size());
+            sb.append(",\"output\":").append(output == null ? "null" : quote(output));
+            sb.append(",\"startMillis\":").append(entry.startMillis());
+            sb.append(",\"durationMillis\":").append(durationMillis);
+            sb.append('}');
+            out.println(sb);
+        } else {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-10s %6d ms  ", outcome, Math.max(0, durationMillis)));
+            sb.append(String.join(" -> ", path));
+            if (entry.size() >= 0) {
+                sb.append(" (").append(entry.size()).append(" bytes)");
+            }
+            if (output != null) {
+                sb.append(" => ").append(output);
+            }
+            out.println(sb);
+        }
+    }
+
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in journal");
+    }
+
+    private static long readSignedVarLong(InputStream in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -1,17 +1,33 @@
 package org.example.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
 
 public class LimitedStream extends OutputStream {
 
     private final OutputStream os;
 
-    private final OutputSizeCounter outputSizeCounter;
+    private final ExtractionQuota quota;
 
-    public LimitedStream(OutputStream os, OutputSizeCounter outputSizeCounter) {
+    /**
+     * File written, deleted on close when a limit stopped the email, null if there is none.
+     */
+    private final File file;
+
+    private long written = 0;
+
+    private boolean exceeded = false;
+
+    public LimitedStream(OutputStream os, ExtractionQuota quota) {
+        this(os, quota, null);
+    }
+
+    LimitedStream(OutputStream os, ExtractionQuota quota, File file) {
         this.os = os;
-        this.outputSizeCounter = outputSizeCounter;
+        this.quota = quota;
+        this.file = file;
     }
 
     public static OutputStream nullOutputStream() {
@@ -20,20 +36,30 @@ public class LimitedStream extends OutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        outputSizeCounter.ensureSize(4);
-        os.write(b);
+        charge(1);
+        try {
+            os.write(b);
+        } catch (QuotaExceededException e) {
+            // a limit on the bytes of the file, once compressed
+            exceeded = true;
+            throw e;
+        }
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        outputSizeCounter.ensureSize(b.length);
-        os.write(b);
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        outputSizeCounter.ensureSize(len);
-        os.write(b, off, len);
+        charge(len);
+        try {
+            os.write(b, off, len);
+        } catch (QuotaExceededException e) {
+            exceeded = true;
+            throw e;
+        }
     }
 
 
@@ -44,6 +70,32 @@ public class LimitedStream extends OutputStream {
 
     @Override
     public void close() throws IOException {
-        os.close();
+        if (exceeded && os instanceof OutputSink.EntryOutputStream entry) {
+            // an incomplete email is not appended to the container
+            entry.abort();
+            return;
+        }
+        try {
+            os.close();
+        } catch (QuotaExceededException e) {
+            // the end of a compressed stream is written on close
+            exceeded = true;
+            throw e;
+        } finally {
+            if (exceeded && file != null) {
+                // an incomplete email is not worth keeping
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    private void charge(int len) throws QuotaExceededException {
+        try {
+            quota.chargeOutput(written, len);
+        } catch (QuotaExceededException e) {
+            exceeded = true;
+            throw e;
+        }
+        written += len;
     }
 }
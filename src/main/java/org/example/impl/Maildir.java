@@ -0,0 +1,67 @@
+package org.example.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Emails of a maildir directory: the files of its {@code cur} and {@code new} directories, then those of
+ * its maildir++ folders, the subdirectories named {@code .folder}. Files being delivered, in {@code tmp},
+ * are left out.
+ */
+class Maildir {
+
+    private static final String[] MESSAGE_DIRECTORIES = {"cur", "new"};
+
+    private Maildir() {
+    }
+
+    /**
+     * Email files in name order, folder by folder.
+     */
+    static List<File> messageFiles(File directory) throws IOException {
+        if (!isMaildir(directory)) {
+            throw new IOException("Not a maildir, no cur or new directory : " + directory);
+        }
+        List<File> files = new ArrayList<>();
+        addMessageFiles(directory, files);
+        File[] folders = directory.listFiles(file -> file.isDirectory() && file.getName().startsWith(".") && isMaildir(file));
+        if (folders != null) {
+            Arrays.sort(folders, Comparator.comparing(File::getName));
+            for (File folder : folders) {
+                addMessageFiles(folder, files);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Name of an email file relative to the maildir, with {@code /} separators.
+     */
+    static String nameOf(File directory, File messageFile) {
+        return directory.toPath().relativize(messageFile.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean isMaildir(File directory) {
+        for (String name : MESSAGE_DIRECTORIES) {
+            if (new File(directory, name).isDirectory()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addMessageFiles(File folder, List<File> files) {
+        for (String name : MESSAGE_DIRECTORIES) {
+            // dot files are not emails, some clients keep their state there
+            File[] messageFiles = new File(folder, name).listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+            if (messageFiles != null) {
+                Arrays.sort(messageFiles, Comparator.comparing(File::getName));
+                files.addAll(Arrays.asList(messageFiles));
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+/**
+ * Positions of the emails of an mbox file, found without copying the file to the heap: the file is
+ * memory mapped in chunks scanned in parallel for the "From " lines starting emails. The emails can
+ * then be read as independent file ranges.
+ * <p>
+ * Ranges follow the rules of {@link MboxReader}: an email is what lies between its "From " line and the
+ * next one, less the empty separator line. An email holding lines quoted by an mboxrd writer has to go
+ * through a {@link MboxReader} to be unquoted, the others can be copied as they are.
+ */
+class MboxIndex {
+
+    /**
+     * Bytes scanned by one task, also the size of a mapping.
+     */
+    static final int CHUNK_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * Bytes mapped past the end of a chunk to read a "From " line starting in the chunk to its end.
+     */
+    private static final int FROM_LINE_LIMIT = 64 * 1024;
+
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    /**
+     * One email of the mbox file.
+     *
+     * @param start        position of its "From " line
+     * @param contentStart position of the email, after the "From " line
+     * @param end          end of the email, before the separator line
+     * @param next         start of the next email, or the end of the file
+     * @param quoted       whether some lines were quoted by the writer
+     */
+    record Message(long start, long contentStart, long end, long next, boolean quoted) {
+
+        long length() {
+            return end - contentStart;
+        }
+    }
+
+    private MboxIndex() {
+    }
+
+    /**
+     * Scans the whole file, chunks are scanned as separate tasks of the given runner.
+     */
+    static List<Message> scan(FileChannel channel, ExtractionTaskRunner taskRunner) throws IOException, MessagingException {
+        long size = channel.size();
+        int chunkCount = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        ChunkScan[] scans = new ChunkScan[chunkCount];
+        List<ExtractionTaskRunner.ExtractionTask> tasks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            ChunkScan scan = new ChunkScan(channel, size, (long) i * CHUNK_SIZE, Math.min(size, (long) (i + 1) * CHUNK_SIZE));
+            scans[i] = scan;
+            tasks.add(scan::run);
+        }
+        taskRunner.runAll(tasks);
+
+        List<Message> messages = new ArrayList<>();
+        LongArray quotedLines = new LongArray();
+        for (ChunkScan scan : scans) {
+            quotedLines.addAll(scan.quotedLines);
+        }
+        int quotedIndex = 0;
+        long[] previous = null;
+        for (ChunkScan scan : scans) {
+            for (int i = 0; i < scan.starts.size(); i++) {
+                long[] current = {scan.starts.get(i), scan.contentStarts.get(i), scan.previousEnds.get(i)};
+                if (previous != null) {
+                    quotedIndex = addMessage(messages, previous, current[2], current[0], quotedLines, quotedIndex);
+                }
+                previous = current;
+            }
+        }
+        if (previous != null) {
+            addMessage(messages, previous, scans[chunkCount - 1].fileEnd, size, quotedLines, quotedIndex);
+        }
+        return messages;
+    }
+
+    private static int addMessage(List<Message> messages, long[] message, long end, long next, LongArray quotedLines, int quotedIndex) {
+        long contentStart = message[1];
+        end = Math.max(contentStart, end);
+        while (quotedIndex < quotedLines.size() && quotedLines.get(quotedIndex) < contentStart) {
+            quotedIndex++;
+        }
+        boolean quoted = quotedIndex < quotedLines.size() && quotedLines.get(quotedIndex) < next;
+        messages.add(new Message(message[0], contentStart, end, next, quoted));
+        return quotedIndex;
+    }
+
+    private static class ChunkScan {
+
+        private final FileChannel channel;
+
+        private final long fileSize;
+
+        private final long from;
+
+        private final long to;
+
+        private final LongArray starts = new LongArray();
+
+        private final LongArray contentStarts = new LongArray();
+
+        /**
+         * End of the email before each start, without the separator line.
+         */
+        private final LongArray previousEnds = new LongArray();
+
+        private final LongArray quotedLines = new LongArray();
+
+        /**
+         * End of the last email of the file, set by the last chunk.
+         */
+        private long fileEnd;
+
+        private MappedByteBuffer buffer;
+
+        private long mapStart;
+
+        ChunkScan(FileChannel channel, long fileSize, long from, long to) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        void run() throws IOException {
+            // a few bytes before the chunk tell whether it starts on a line, or follows a separator line
+            mapStart = Math.max(0, from - 3);
+            long mapEnd = Math.min(fileSize, to + FROM_LINE_LIMIT);
+            if (mapEnd <= mapStart) {
+                fileEnd = fileSize;
+                return;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+            int chunkEnd = (int) (to - mapStart);
+            int limit = buffer.limit();
+
+            int line = (int) (from - mapStart);
+            if (from > 0 && buffer.get(line - 1) != '\n') {
+                // the line started in the previous chunk
+                int lineEnd = indexOfLineBreak(line, chunkEnd);
+                line = lineEnd < 0 ? chunkEnd : lineEnd + 1;
+            }
+            while (line < chunkEnd) {
+                byte b = buffer.get(line);
+                if (b == 'F' && matchesFrom(line, limit)) {
+                    starts.add(mapStart + line);
+                    previousEnds.add(mapStart + line - separatorLength(line));
+                    int fromLineEnd = indexOfLineBreak(line, limit);
+                    contentStarts.add(mapStart + (fromLineEnd < 0 ? limit : fromLineEnd + 1));
+                } else if (b == '>') {
+                    int quotes = line;
+                    while (quotes < limit && buffer.get(quotes) == '>') {
+                        quotes++;
+                    }
+                    if (matchesFrom(quotes, limit)) {
+                        quotedLines.add(mapStart + line);
+                    }
+                }
+                int lineEnd = indexOfLineBreak(line, chunkEnd);
+                if (lineEnd < 0) {
+                    break;
+                }
+                line = lineEnd + 1;
+            }
+            if (to == fileSize) {
+                fileEnd = fileSize - separatorLength(limit);
+            }
+            buffer = null;
+        }
+
+        private boolean matchesFrom(int offset, int limit) {
+            if (offset + FROM.length > limit) {
+                return false;
+            }
+            for (int i = 0; i < FROM.length; i++) {
+                if (buffer.get(offset + i) != FROM[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Length of the empty line ending just before the given offset, 0 if there is none.
+         */
+        private int separatorLength(int offset) {
+            if (offset >= 2 && buffer.get(offset - 1) == '\n' && buffer.get(offset - 2) == '\n') {
+                return 1;
+            }
+            if (offset >= 3 && buffer.get(offset - 1) == '\n' && buffer.get(offset - 2) == '\r' && buffer.get(offset - 3) == '\n') {
+                return 2;
+            }
+            return 0;
+        }
+
+        private int indexOfLineBreak(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Growable array of positions, without boxing them.
+     */
+    private static class LongArray {
+
+        private long[] values = new long[16];
+
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(LongArray other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
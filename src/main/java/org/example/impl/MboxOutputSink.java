@@ -0,0 +1,138 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Mbox file of the extracted emails, in the mboxrd variant: every email starts with a "From " line
+ * and lines of the email matching {@code >*From } get one more {@code >}, so readers can restore them.
+ * Line endings of the emails are kept as they are.
+ */
+class MboxOutputSink extends OutputSink {
+
+    private static final DateTimeFormatter ASCTIME = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+
+    private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] separator;
+
+    MboxOutputSink(Path path) throws IOException {
+        super(path);
+        this.separator = ("From MAILER-DAEMON " + ASCTIME.format(ZonedDateTime.now()) + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    protected void writeEntry(OutputStream out, String name, long size, long crc, InputStream content) throws IOException {
+        out.write(separator);
+        FromQuotingOutputStream quoting = new FromQuotingOutputStream(out);
+        copy(content, quoting);
+        quoting.finish();
+        // an empty line separates an email from the next "From " line
+        out.write('\n');
+    }
+
+    @Override
+    protected void finish(OutputStream out) {
+        // nothing after the last email
+    }
+
+    /**
+     * Quotes the lines matching {@code >*From }, ends the content with a line break.
+     */
+    private static class FromQuotingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private boolean lineStart = true;
+
+        /**
+         * {@code >} read at the start of the current line, not written yet.
+         */
+        private int quotes = 0;
+
+        /**
+         * Bytes of "From " read after the quotes, not written yet.
+         */
+        private int matched = 0;
+
+        private int lastByte = '\n';
+
+        FromQuotingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (lineStart) {
+                if (matched == 0 && b == '>') {
+                    quotes++;
+                    return;
+                }
+                if (b == FROM[matched]) {
+                    matched++;
+                    if (matched == FROM.length) {
+                        out.write('>');
+                        writePending();
+                        lineStart = false;
+                    }
+                    return;
+                }
+                writePending();
+                lineStart = false;
+            }
+            out.write(b);
+            lastByte = b;
+            if (b == '\n') {
+                lineStart = true;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (lineStart) {
+                    write(b[i++] & 0xFF);
+                    continue;
+                }
+                int lineEnd = i;
+                while (lineEnd < end && b[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int next = lineEnd < end ? lineEnd + 1 : end;
+                out.write(b, i, next - i);
+                lastByte = b[next - 1] & 0xFF;
+                lineStart = lineEnd < end;
+                i = next;
+            }
+        }
+
+        void finish() throws IOException {
+            writePending();
+            if (lastByte != '\n') {
+                out.write('\n');
+            }
+        }
+
+        private void writePending() throws IOException {
+            for (int i = 0; i < quotes; i++) {
+                out.write('>');
+                lastByte = '>';
+            }
+            if (matched > 0) {
+                out.write(FROM, 0, matched);
+                lastByte = FROM[matched - 1];
+            }
+            quotes = 0;
+            matched = 0;
+        }
+    }
+}
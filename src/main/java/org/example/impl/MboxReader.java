@@ -0,0 +1,235 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the emails of an mbox stream one after another, like a {@link java.util.zip.ZipInputStream}
+ * reads its entries.
+ * <p>
+ * An email starts after a line beginning with "From " and ends at the next such line. The empty line
+ * written before the next "From " line, or at the end of the stream, is not part of the email. Lines
+ * matching {@code >+From } lose one {@code >}, which restores the lines quoted by an mboxrd writer.
+ * Anything before the first "From " line is ignored.
+ * <p>
+ * The read buffer comes from a {@link BufferPool} and goes back to it on close, the underlying stream is
+ * not closed.
+ */
+class MboxReader implements Closeable {
+
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    private static final byte[] LF = {'\n'};
+
+    private final InputStream in;
+
+    private final BufferPool bufferPool;
+
+    private byte[] buffer;
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    private boolean eof = false;
+
+    private MessageInputStream current;
+
+    MboxReader(InputStream in, BufferPool bufferPool) {
+        this.in = in;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquireArray();
+    }
+
+    /**
+     * Stream of the next email, what was left unread of the previous one is skipped. Null once the
+     * stream has no more emails.
+     */
+    InputStream nextMessage() throws IOException {
+        ensureOpen();
+        if (current != null) {
+            current.skipToEnd();
+            current = null;
+        }
+        // look for a "From " line, at a line start unless a previous email ended on it
+        while (!startsWith(position, FROM)) {
+            if (!skipLine()) {
+                return null;
+            }
+        }
+        skipLine();
+        current = new MessageInputStream();
+        return current;
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            bufferPool.releaseArray(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Skips the bytes up to and including the next line break.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean skipLine() throws IOException {
+        while (true) {
+            if (position == limit && !fill(1)) {
+                return false;
+            }
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    position = i + 1;
+                    return true;
+                }
+            }
+            position = limit;
+        }
+    }
+
+    /**
+     * True when the bytes at the given buffer offset are the expected ones, reading more if needed.
+     */
+    private boolean startsWith(int offset, byte[] expected) throws IOException {
+        int relative = offset - position;
+        if (!buffered(relative + expected.length)) {
+            return false;
+        }
+        int start = position + relative;
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes {@code count} bytes from the current position available in the buffer, if the stream has them.
+     * Reading may move the buffered bytes, offsets in the buffer are only kept relative to the position.
+     */
+    private boolean buffered(int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+        if (count > buffer.length) {
+            return false;
+        }
+        return fill(count);
+    }
+
+    private boolean fill(int count) throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < count && !eof) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+        return limit >= count;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Mbox reader closed");
+        }
+    }
+
+    private class MessageInputStream extends InputStream {
+
+        private boolean lineStart = true;
+
+        private boolean ended = false;
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int count = read(single, 0, 1);
+            return count < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < len && !ended) {
+                ensureOpen();
+                if (position == limit && !fill(1)) {
+                    ended = true;
+                    break;
+                }
+                if (lineStart && startOfLine()) {
+                    continue;
+                }
+                // copy up to the end of the current line
+                int end = Math.min(limit, position + len - count);
+                int copied = end;
+                for (int i = position; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        copied = i + 1;
+                        break;
+                    }
+                }
+                System.arraycopy(buffer, position, b, off + count, copied - position);
+                count += copied - position;
+                lineStart = buffer[copied - 1] == '\n';
+                position = copied;
+            }
+            return count == 0 && ended ? -1 : count;
+        }
+
+        /**
+         * Handles the start of a line: the end of the email, a separator line or a quoted "From ".
+         *
+         * @return true when the position moved and the line start must be checked again
+         */
+        private boolean startOfLine() throws IOException {
+            lineStart = false;
+            if (startsWith(position, FROM)) {
+                ended = true;
+                return true;
+            }
+            int lineBreak = buffer[position] == '\n' ? 1 : buffer[position] == '\r' && startsWith(position + 1, LF) ? 2 : 0;
+            if (lineBreak > 0) {
+                // an empty line is the separator when followed by the next email or the end of the stream
+                if (!buffered(lineBreak + 1) || startsWith(position + lineBreak, FROM)) {
+                    position += lineBreak;
+                    ended = true;
+                    return true;
+                }
+                return false;
+            }
+            if (buffer[position] == '>') {
+                int quotes = 1;
+                while (buffered(quotes + 1) && buffer[position + quotes] == '>') {
+                    quotes++;
+                }
+                if (startsWith(position + quotes, FROM)) {
+                    // quoted by the writer, drop one '>'
+                    position++;
+                }
+            }
+            return false;
+        }
+
+        void skipToEnd() throws IOException {
+            byte[] skipped = new byte[1024];
+            while (read(skipped, 0, skipped.length) >= 0) {
+                // discard
+            }
+        }
+    }
+}
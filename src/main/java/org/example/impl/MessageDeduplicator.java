@@ -0,0 +1,309 @@
+package org.example.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.example.DedupMode;
+
+/**
+ * Detects extracted emails with identical content. Every email is hashed while it is written, a
+ * duplicate is then deleted or replaced by a hard link to the first copy. An email whose bytes can be read
+ * twice is hashed before it is written instead, a duplicate is then never written. The hash index can be kept
+ * in a file so duplicates of emails extracted by previous runs are detected too, as long as their first
+ * copy still exists.
+ * <p>
+ * The copy kept is the first one in the order of a sequential extraction, whatever the order emails are
+ * completed in: an email completed after a later copy of itself takes the place of that copy, which becomes the
+ * duplicate. Copies are ordered by the ordinals of their extraction paths.
+ */
+class MessageDeduplicator {
+
+    private static final Logger log = LogManager.getLogger(MessageDeduplicator.class);
+
+    private static final String INDEX_SEPARATOR = "\t";
+
+    interface FinalFile {
+        File get() throws IOException;
+    }
+
+    private final DedupMode dedupMode;
+
+    private final Path indexFile;
+
+    private final Map<String, Path> filesByHash = new ConcurrentHashMap<>();
+
+    private final Map<String, Path> newFilesByHash = new ConcurrentHashMap<>();
+
+    private final Map<Path, String> hashesOfNewFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Extraction path ordinals of the first copies written by this run.
+     */
+    private final Map<Path, int[]> ordinalsOfNewFiles = new ConcurrentHashMap<>();
+
+    private final AtomicLong messageCount = new AtomicLong();
+
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    private final AtomicLong duplicateBytes = new AtomicLong();
+
+    MessageDeduplicator(DedupMode dedupMode, Path indexFile) throws IOException {
+        this.dedupMode = dedupMode;
+        this.indexFile = indexFile;
+        if (indexFile != null && Files.exists(indexFile)) {
+            loadIndex();
+        }
+    }
+
+    /**
+     * Wraps the stream writing an email to {@code writtenFile}. Once the email is committed, a unique email
+     * is moved to the file given by {@code finalFile} (or stays in place when it is null), a duplicate
+     * is removed. An aborted email is neither indexed nor named.
+     *
+     * @param ordinals ordinals of the extraction path of the email
+     */
+    EmailOutputStream wrap(EmailOutputStream out, File writtenFile, FinalFile finalFile, int[] ordinals) {
+        return new HashingOutputStream(out, writtenFile, finalFile, ordinals);
+    }
+
+    /**
+     * Records an email hashed before being written. A duplicate is not to be written: it is counted, and
+     * linked to the first copy under the name given by {@code finalFile} in {@link DedupMode#LINK} mode.
+     *
+     * @param ordinals ordinals of the extraction path of the email
+     * @return whether the email is a duplicate
+     */
+    synchronized boolean skipDuplicate(String hash, long size, FinalFile finalFile, int[] ordinals) throws IOException {
+        Path existing = existingCopy(hash);
+        if (existing == null || isEarlier(ordinals, existing)) {
+            // written and counted as any other email
+            return false;
+        }
+        messageCount.incrementAndGet();
+        duplicateCount.incrementAndGet();
+        duplicateBytes.addAndGet(size);
+        if (dedupMode == DedupMode.LINK) {
+            link(finalFile.get().toPath().toAbsolutePath(), existing);
+        } else {
+            log.info("SKIPPING DUPLICATE OF : " + existing);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the emails of previous runs found in a directory about to be emptied, they cannot stay first copies.
+     */
+    void forgetFilesIn(Path directory) {
+        Path cleaned = directory.toAbsolutePath().normalize();
+        int forgotten = 0;
+        for (Map.Entry<String, Path> entry : filesByHash.entrySet()) {
+            if (entry.getValue().toAbsolutePath().normalize().startsWith(cleaned)
+                    && filesByHash.remove(entry.getKey(), entry.getValue())) {
+                forgotten++;
+            }
+        }
+        if (forgotten > 0) {
+            log.warn("Dedup index : " + forgotten + " emails of previous runs are in the output directory, "
+                    + "which is emptied, they are extracted again : " + directory);
+        }
+    }
+
+    /**
+     * Updates the index after the output files were renamed.
+     */
+    void relocate(File from, File to) {
+        Path fromPath = from.toPath().toAbsolutePath();
+        Path toPath = to.toPath().toAbsolutePath();
+        String hash = hashesOfNewFiles.remove(fromPath);
+        if (hash != null) {
+            hashesOfNewFiles.put(toPath, hash);
+            int[] ordinals = ordinalsOfNewFiles.remove(fromPath);
+            if (ordinals != null) {
+                ordinalsOfNewFiles.put(toPath, ordinals);
+            }
+            newFilesByHash.put(hash, toPath);
+            filesByHash.replace(hash, fromPath, toPath);
+        }
+    }
+
+    /**
+     * Appends the emails written by this run to the index file.
+     */
+    void saveIndex() throws IOException {
+        if (indexFile == null || newFilesByHash.isEmpty()) {
+            return;
+        }
+        Path parent = indexFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(
+                indexFile,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND
+        )) {
+            for (Map.Entry<String, Path> entry : newFilesByHash.entrySet()) {
+                writer.write(entry.getKey() + INDEX_SEPARATOR + entry.getValue());
+                writer.newLine();
+            }
+        }
+        newFilesByHash.clear();
+        hashesOfNewFiles.clear();
+        ordinalsOfNewFiles.clear();
+    }
+
+    void logReport() {
+        long messages = messageCount.get();
+        long duplicates = duplicateCount.get();
+        double ratio = messages == 0 ? 0 : 100.0 * duplicates / messages;
+        log.info(String.format(
+                "Deduplication : %d of %d emails were duplicates (%.1f%%), %s not written",
+                duplicates,
+                messages,
+                ratio,
+                FileUtils.byteCountToDisplaySize(duplicateBytes.get())
+        ));
+    }
+
+    private void loadIndex() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(INDEX_SEPARATOR);
+                if (separator > 0) {
+                    // a copy indexed again after the first one was removed comes later in the file
+                    filesByHash.put(line.substring(0, separator), Path.of(line.substring(separator + 1)));
+                }
+            }
+        }
+        log.info("Loaded " + filesByHash.size() + " hashes from dedup index : " + indexFile);
+    }
+
+    private synchronized void commit(File writtenFile, FinalFile finalFile, String hash, long size, int[] ordinals) throws IOException {
+        messageCount.incrementAndGet();
+        Path writtenPath = writtenFile.toPath().toAbsolutePath();
+        Path existing = existingCopy(hash);
+        if (existing == null || isEarlier(ordinals, existing)) {
+            Path target = finalFile == null ? writtenPath : finalFile.get().toPath().toAbsolutePath();
+            if (!target.equals(writtenPath)) {
+                Files.move(writtenPath, target);
+            }
+            filesByHash.put(hash, target);
+            newFilesByHash.put(hash, target);
+            hashesOfNewFiles.put(target, hash);
+            ordinalsOfNewFiles.put(target, ordinals);
+            if (existing != null) {
+                // completed first but extracted later, the copy written before is now the duplicate
+                hashesOfNewFiles.remove(existing);
+                ordinalsOfNewFiles.remove(existing);
+                duplicateCount.incrementAndGet();
+                duplicateBytes.addAndGet(size);
+                Files.delete(existing);
+                if (dedupMode == DedupMode.LINK) {
+                    link(existing, target);
+                } else {
+                    log.info("SKIPPING DUPLICATE OF : " + target);
+                }
+            }
+            return;
+        }
+
+        duplicateCount.incrementAndGet();
+        duplicateBytes.addAndGet(size);
+        Files.delete(writtenPath);
+        if (dedupMode == DedupMode.LINK) {
+            link(finalFile == null ? writtenPath : finalFile.get().toPath().toAbsolutePath(), existing);
+        } else {
+            log.info("SKIPPING DUPLICATE OF : " + existing);
+        }
+    }
+
+    /**
+     * Whether an email comes before the copy of it written by this run, in a sequential extraction. Copies of
+     * previous runs always come first.
+     */
+    private boolean isEarlier(int[] ordinals, Path existing) {
+        int[] existingOrdinals = ordinalsOfNewFiles.get(existing);
+        return existingOrdinals != null && Arrays.compare(ordinals, existingOrdinals) < 0;
+    }
+
+    /**
+     * First copy of the email with the given hash, null if there is none or it was removed since it was indexed.
+     */
+    private Path existingCopy(String hash) {
+        Path existing = filesByHash.get(hash);
+        if (existing != null && !Files.exists(existing)) {
+            // the first copy is gone, the next one takes its place
+            filesByHash.remove(hash, existing);
+            return null;
+        }
+        return existing;
+    }
+
+    private static void link(Path target, Path existing) throws IOException {
+        log.info("LINKING : " + target + " -> " + existing);
+        try {
+            Files.createLink(target, existing);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Hard link not possible, copying : " + e.getMessage());
+            Files.copy(existing, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private class HashingOutputStream extends EmailOutputStream {
+
+        private final File writtenFile;
+
+        private final FinalFile finalFile;
+
+        private final int[] ordinals;
+
+        private final MessageDigest digest = DigestUtils.getSha256Digest();
+
+        private long size = 0;
+
+        HashingOutputStream(EmailOutputStream out, File writtenFile, FinalFile finalFile, int[] ordinals) {
+            super(out);
+            this.writtenFile = writtenFile;
+            this.finalFile = finalFile;
+            this.ordinals = ordinals;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            digest.update((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        protected void committed() throws IOException {
+            MessageDeduplicator.this.commit(writtenFile, finalFile, Hex.encodeHexString(digest.digest()), size, ordinals);
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package org.example.impl;
 
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
 
 class MessageUtils {
 
@@ -42,5 +45,62 @@ class MessageUtils {
         return bodyPart.isMimeType("application/zip") || bodyPart.isMimeType("application/x-zip-compressed");
     }
 
+    static boolean isMbox(BodyPart bodyPart) throws MessagingException {
+        return bodyPart.isMimeType("application/mbox");
+    }
+
+    static boolean isTar(BodyPart bodyPart) throws MessagingException {
+        return bodyPart.isMimeType("application/x-tar");
+    }
+
+    static boolean isGzip(BodyPart bodyPart) throws MessagingException {
+        return bodyPart.isMimeType("application/gzip") || bodyPart.isMimeType("application/x-gzip");
+    }
+
+    static boolean isMessage(MimeStreamScanner.Part part) {
+        return part.isMimeType("message/rfc822");
+    }
+
+    static boolean isZip(MimeStreamScanner.Part part) {
+        return part.isMimeType("application/zip") || part.isMimeType("application/x-zip-compressed");
+    }
+
+    static boolean isMbox(MimeStreamScanner.Part part) {
+        return part.isMimeType("application/mbox");
+    }
+
+    static boolean isTar(MimeStreamScanner.Part part) {
+        return part.isMimeType("application/x-tar");
+    }
+
+    static boolean isGzip(MimeStreamScanner.Part part) {
+        return part.isMimeType("application/gzip") || part.isMimeType("application/x-gzip");
+    }
+
+    static boolean isText(MimeStreamScanner message) {
+        return message.isMimeType("text/plain");
+    }
+
+    static boolean isMessage(MimeStreamScanner message) {
+        return message.isMimeType("text/plain");
+    }
+
+    /**
+     * Values of a header joined, unfolded and with their encoded words decoded, null if the header is missing.
+     */
+    static String decodedHeader(InternetHeaders headers, String name) {
+        String value = headers.getHeader(name, ", ");
+        if (value == null) {
+            return null;
+        }
+        String unfolded = MimeUtility.unfold(value).strip();
+        try {
+            return MimeUtility.decodeText(unfolded);
+        } catch (UnsupportedEncodingException e) {
+            // unknown charset, the header is kept as it is
+            return unfolded;
+        }
+    }
+
 
 }
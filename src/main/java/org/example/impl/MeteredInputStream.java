@@ -0,0 +1,79 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Charges the time spent reading and the bytes read to a stage of the {@link ExtractionMetrics}.
+ * The measurement is recorded when the stream is closed, closing the underlying stream too.
+ */
+class MeteredInputStream extends InputStream {
+
+    private final InputStream in;
+
+    private final ExtractionMetrics.StageTimer timer;
+
+    private long bytes;
+
+    private boolean closed = false;
+
+    MeteredInputStream(InputStream in, ExtractionMetrics.StageTimer timer) {
+        this.in = in;
+        this.timer = timer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read;
+        timer.start();
+        try {
+            read = in.read();
+        } finally {
+            timer.stop();
+        }
+        if (read >= 0) {
+            bytes++;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read;
+        timer.start();
+        try {
+            read = in.read(b, off, len);
+        } finally {
+            timer.stop();
+        }
+        if (read > 0) {
+            bytes += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        timer.start();
+        try {
+            return in.skip(n);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        timer.finish(bytes);
+        in.close();
+    }
+}
@@ -0,0 +1,71 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Charges the time spent writing and the bytes written to a stage of the {@link ExtractionMetrics}.
+ * The measurement is recorded when the stream is closed, closing the underlying stream too.
+ */
+class MeteredOutputStream extends OutputStream {
+
+    private final OutputStream out;
+
+    private final ExtractionMetrics.StageTimer timer;
+
+    private long bytes;
+
+    private boolean closed = false;
+
+    MeteredOutputStream(OutputStream out, ExtractionMetrics.StageTimer timer) {
+        this.out = out;
+        this.timer = timer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        timer.start();
+        try {
+            out.write(b);
+        } finally {
+            timer.stop();
+        }
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        timer.start();
+        try {
+            out.write(b, off, len);
+        } finally {
+            timer.stop();
+        }
+        bytes += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        timer.start();
+        try {
+            out.flush();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        timer.start();
+        try {
+            out.close();
+        } finally {
+            timer.stop();
+            timer.finish(bytes);
+        }
+    }
+}
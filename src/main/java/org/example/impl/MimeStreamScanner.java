@@ -0,0 +1,364 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Pull-based reader of a MIME message that never holds more than one buffer of it in memory.
+ * Only the headers of the message and of its top level body parts are parsed, part content
+ * is exposed as a stream ending at the next boundary and decoded on the fly.
+ * <p>
+ * Closing the scanner gives its buffer back to the pool it came from, the message stream is left open.
+ */
+class MimeStreamScanner implements Closeable {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final String DEFAULT_CONTENT_TYPE = "text/plain";
+    private static final int MAX_HEADER_LINE_LENGTH = 64 * 1024;
+    private static final int MIN_BUFFER_SIZE = 1024;
+    private static final boolean ALLOW_ENCODED_MESSAGES = Boolean.getBoolean("mail.mime.allowencodedmessages");
+
+    private final InputStream in;
+
+    private final BufferPool bufferPool;
+
+    private byte[] buffer;
+
+    private int position;
+
+    private int limit;
+
+    private boolean endOfInput;
+
+    private final InternetHeaders headers;
+
+    private final ContentType contentType;
+
+    private byte[] delimiter;
+
+    private PartInputStream currentPart;
+
+    private boolean lastPartReached;
+
+    MimeStreamScanner(InputStream in, int bufferSize) throws IOException, MessagingException {
+        this(in, null, new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)]);
+    }
+
+    MimeStreamScanner(InputStream in, BufferPool bufferPool) throws IOException, MessagingException {
+        this(
+                in,
+                bufferPool.getBufferSize() >= MIN_BUFFER_SIZE ? bufferPool : null,
+                bufferPool.getBufferSize() >= MIN_BUFFER_SIZE ? bufferPool.acquireArray() : new byte[MIN_BUFFER_SIZE]
+        );
+    }
+
+    private MimeStreamScanner(InputStream in, BufferPool bufferPool, byte[] buffer) throws IOException, MessagingException {
+        this.in = in;
+        this.bufferPool = bufferPool;
+        this.buffer = buffer;
+        this.headers = readHeaders(new ScannerInputStream());
+        this.contentType = parseContentType(headers);
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null && bufferPool != null) {
+            bufferPool.releaseArray(buffer);
+        }
+        buffer = null;
+    }
+
+    InternetHeaders getHeaders() {
+        return headers;
+    }
+
+    ContentType getContentType() {
+        return contentType;
+    }
+
+    boolean isMimeType(String mimeType) {
+        return contentType.match(mimeType);
+    }
+
+    /**
+     * Moves to the next top level body part of a multipart message, skipping whatever is left of the
+     * current one. Returns null after the last part.
+     */
+    Part nextPart() throws IOException, MessagingException {
+        if (delimiter == null) {
+            String boundary = contentType.getParameter("boundary");
+            if (!isMimeType("multipart/*") || boundary == null) {
+                throw new MessagingException("Not a multipart message : " + contentType);
+            }
+            delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            // the preamble is read like a part and thrown away
+            currentPart = new PartInputStream();
+        }
+        currentPart.skipToEnd();
+        if (lastPartReached) {
+            return null;
+        }
+        currentPart = new PartInputStream();
+        InternetHeaders partHeaders = readHeaders(currentPart);
+        return new Part(partHeaders, parseContentType(partHeaders), currentPart);
+    }
+
+    static class Part {
+
+        private final InternetHeaders headers;
+
+        private final ContentType contentType;
+
+        private final InputStream content;
+
+        private Part(InternetHeaders headers, ContentType contentType, InputStream content) {
+            this.headers = headers;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        InternetHeaders getHeaders() {
+            return headers;
+        }
+
+        boolean isMimeType(String mimeType) {
+            return contentType.match(mimeType);
+        }
+
+        /**
+         * Same lookup as {@link javax.mail.internet.MimeBodyPart#getFileName()} : the filename parameter of
+         * Content-Disposition, then the name parameter of Content-Type.
+         */
+        String getFileName() throws MessagingException {
+            String disposition = headers.getHeader("Content-Disposition", null);
+            if (disposition != null) {
+                String fileName = new ContentDisposition(disposition).getParameter("filename");
+                if (fileName != null) {
+                    return fileName;
+                }
+            }
+            return contentType.getParameter("name");
+        }
+
+        /**
+         * Part content with the Content-Transfer-Encoding removed. Like javax.mail, the encoding of
+         * message and multipart parts is ignored unless mail.mime.allowencodedmessages is set.
+         */
+        InputStream getInputStream() throws MessagingException {
+            String encoding = headers.getHeader("Content-Transfer-Encoding", null);
+            if (encoding == null) {
+                return content;
+            }
+            if ((isMimeType("message/*") || isMimeType("multipart/*")) && !ALLOW_ENCODED_MESSAGES) {
+                return content;
+            }
+            return MimeUtility.decode(content, encoding.trim());
+        }
+    }
+
+    private static ContentType parseContentType(InternetHeaders headers) throws MessagingException {
+        String value = headers.getHeader("Content-Type", null);
+        return new ContentType(value != null ? value : DEFAULT_CONTENT_TYPE);
+    }
+
+    /**
+     * Reads header lines up to and including the empty line separating them from the body.
+     */
+    private static InternetHeaders readHeaders(InputStream in) throws IOException {
+        InternetHeaders result = new InternetHeaders();
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != -1 && b != LF) {
+                if (line.length() < MAX_HEADER_LINE_LENGTH) {
+                    line.append((char) b);
+                }
+            }
+            if (line.length() > 0 && line.charAt(line.length() - 1) == CR) {
+                line.setLength(line.length() - 1);
+            }
+            if (line.length() == 0) {
+                return result;
+            }
+            result.addHeaderLine(line.toString());
+            if (b == -1) {
+                return result;
+            }
+        }
+    }
+
+    private boolean ensureAvailable(int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (!endOfInput && limit < count) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                limit += read;
+            }
+        }
+        return limit - position >= count;
+    }
+
+    /**
+     * Message bytes following the ones already consumed, used to read the message headers.
+     */
+    private class ScannerInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            return ensureAvailable(1) ? buffer[position++] & 0xFF : -1;
+        }
+    }
+
+    /**
+     * Content of one part, up to the line break preceding the next delimiter line. A line break is held
+     * back until the following line is known not to be a delimiter.
+     */
+    private class PartInputStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        private boolean atPartStart = true;
+
+        private int pendingLineBreak = 0;
+
+        private boolean pendingLineBreakIsContent = false;
+
+        private boolean finished;
+
+        @Override
+        public int read() throws IOException {
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (finished) {
+                    return -1;
+                }
+                if (pendingLineBreak > 0) {
+                    if (!pendingLineBreakIsContent) {
+                        if (isDelimiterLine()) {
+                            finish();
+                            return -1;
+                        }
+                        pendingLineBreakIsContent = true;
+                    }
+                    int count = Math.min(len, pendingLineBreak);
+                    for (int i = 0; i < count; i++) {
+                        b[off + i] = pendingLineBreak - i == 2 ? CR : LF;
+                    }
+                    pendingLineBreak -= count;
+                    return count;
+                }
+                if (atPartStart) {
+                    atPartStart = false;
+                    if (isDelimiterLine()) {
+                        finish();
+                        return -1;
+                    }
+                }
+                if (!ensureAvailable(1)) {
+                    // truncated message, no closing delimiter
+                    lastPartReached = true;
+                    finished = true;
+                    return -1;
+                }
+                int lineFeed = -1;
+                for (int i = position; i < limit; i++) {
+                    if (buffer[i] == LF) {
+                        lineFeed = i;
+                        break;
+                    }
+                }
+                int contentEnd;
+                if (lineFeed >= 0) {
+                    contentEnd = lineFeed > position && buffer[lineFeed - 1] == CR ? lineFeed - 1 : lineFeed;
+                    if (contentEnd == position) {
+                        // end of line, the delimiter check happens before its line break is returned
+                        pendingLineBreak = lineFeed - contentEnd + 1;
+                        pendingLineBreakIsContent = false;
+                        position = lineFeed + 1;
+                        continue;
+                    }
+                } else {
+                    contentEnd = limit;
+                    if (buffer[limit - 1] == CR && !endOfInput) {
+                        // keep a trailing carriage return until we know whether a line feed follows
+                        contentEnd--;
+                        if (contentEnd == position) {
+                            ensureAvailable(limit - position + 1);
+                            continue;
+                        }
+                    }
+                }
+                int count = Math.min(len, contentEnd - position);
+                System.arraycopy(buffer, position, b, off, count);
+                position += count;
+                return count;
+            }
+        }
+
+        void skipToEnd() throws IOException {
+            byte[] skipBuffer = new byte[1024];
+            while (read(skipBuffer, 0, skipBuffer.length) != -1) {
+                // discard
+            }
+        }
+
+        private void finish() throws IOException {
+            finished = true;
+            pendingLineBreak = 0;
+            position += delimiter.length;
+            if (ensureAvailable(2) && buffer[position] == '-' && buffer[position + 1] == '-') {
+                lastPartReached = true;
+            }
+            while (ensureAvailable(1)) {
+                if (buffer[position++] == LF) {
+                    return;
+                }
+            }
+            lastPartReached = true;
+        }
+
+        private boolean isDelimiterLine() throws IOException {
+            ensureAvailable(delimiter.length + 1);
+            if (limit - position < delimiter.length) {
+                return false;
+            }
+            for (int i = 0; i < delimiter.length; i++) {
+                if (buffer[position + i] != delimiter[i]) {
+                    return false;
+                }
+            }
+            if (limit - position == delimiter.length) {
+                return true;
+            }
+            byte next = buffer[position + delimiter.length];
+            return next == '-' || next == CR || next == LF || next == ' ' || next == '\t';
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.example.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.example.OutputCompression;
+
+/**
+ * Compresses the extracted emails as they are written to their files, which then get the extension of the
+ * compression after {@code .eml}. The emails are charged to the total output limit before compression, the
+ * compressed bytes to a separate total with the same limit, so neither the emails nor what reaches the disk
+ * go over it.
+ * <p>
+ * Compressing is the costly part of writing, it is done by the writer threads. An email the in-flight limit
+ * cannot hold is written, and compressed, by the thread extracting it.
+ */
+class OutputCompressor {
+
+    private final OutputCompression compression;
+
+    private final int level;
+
+    private final ExtractionQuota quota;
+
+    private final ExtractionMetrics metrics;
+
+    OutputCompressor(OutputCompression compression, int level, ExtractionQuota quota, ExtractionMetrics metrics) {
+        if (compression == OutputCompression.NONE) {
+            throw new IllegalArgumentException("No compression to write with");
+        }
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level should be between " + Deflater.BEST_SPEED
+                    + " and " + Deflater.BEST_COMPRESSION + " : " + level);
+        }
+        this.compression = compression;
+        this.level = level;
+        this.quota = quota;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Extension added to the name of the email files.
+     */
+    String getExtension() {
+        return compression == OutputCompression.GZIP ? ".gz" : ".deflate";
+    }
+
+    /**
+     * Stream compressing what is written to it into the given file stream, closed along with it.
+     */
+    OutputStream wrap(OutputStream out) throws IOException {
+        OutputStream counted = new CompressedOutputStream(out);
+        if (compression == OutputCompression.GZIP) {
+            return new GZIPOutputStream(counted) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(counted, deflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // a deflater given to the stream is not released by it
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Charges the compressed bytes on their way to the file.
+     */
+    private class CompressedOutputStream extends FilterOutputStream {
+
+        CompressedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            quota.chargeCompressed(1);
+            out.write(b);
+            metrics.compressedBytesWritten(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            quota.chargeCompressed(len);
+            out.write(b, off, len);
+            metrics.compressedBytesWritten(len);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.example.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import javax.mail.MessagingException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.example.Durability;
+
+/**
+ * When the extracted emails are forced to the disk. {@link Durability#FILE} forces each email file as it is
+ * closed, by the writer threads when there are some, {@link Durability#BATCH} forces every file the run wrote
+ * once extraction is over, so writes are never held up by the disk. Either way the directories of the output
+ * are forced at the end, so the names of the files survive a crash along with their content.
+ * <p>
+ * The email files are recorded under their final names as they are committed, and followed when renamed, so
+ * exactly the files of this run are forced, whatever else the output directory holds. Files deleted since, dropped
+ * duplicates, are passed over.
+ */
+class OutputDurability {
+
+    private static final Logger log = LogManager.getLogger(OutputDurability.class);
+
+    /**
+     * Files forced by one task at the end, forcing one file is mostly waiting on the disk.
+     */
+    private static final int FILES_PER_TASK = 256;
+
+    private final Durability durability;
+
+    private final Path outputPath;
+
+    private final Set<Path> writtenFiles = ConcurrentHashMap.newKeySet();
+
+    OutputDurability(Durability durability, Path outputPath) {
+        this.durability = durability;
+        this.outputPath = outputPath;
+    }
+
+    /**
+     * Stream writing an email file, forced to the disk on close with {@link Durability#FILE}.
+     */
+    FileOutputStream openFile(File file) throws FileNotFoundException {
+        if (durability != Durability.FILE) {
+            return new FileOutputStream(file);
+        }
+        return new FileOutputStream(file) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    getFD().sync();
+                } finally {
+                    super.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Forces an email file written through a channel before it is closed, with {@link Durability#FILE}.
+     */
+    void fileWritten(FileChannel channel) throws IOException {
+        if (durability == Durability.FILE) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Records an email file written by this run, null for an email that was not written.
+     */
+    void recordFile(File file) {
+        if (durability != Durability.NONE && file != null) {
+            writtenFiles.add(file.toPath().toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * Follows a recorded email file to its new name.
+     */
+    void relocate(File from, File to) {
+        if (writtenFiles.remove(from.toPath().toAbsolutePath().normalize())) {
+            writtenFiles.add(to.toPath().toAbsolutePath().normalize());
+        }
+    }
+
+    /**
+     * Wraps the stream writing an email, the file given by {@code outputFile} once the email is committed is recorded.
+     */
+    EmailOutputStream wrap(EmailOutputStream out, Supplier<File> outputFile) {
+        if (durability == Durability.NONE) {
+            return out;
+        }
+        return new EmailOutputStream(out) {
+            @Override
+            protected void committed() {
+                recordFile(outputFile.get());
+            }
+        };
+    }
+
+    /**
+     * Forces what the run wrote to the disk, to be called once every email is written and named.
+     */
+    void syncOutput(ExtractionTaskRunner taskRunner) throws IOException, MessagingException {
+        if (durability == Durability.NONE || OutputSink.STANDARD_OUTPUT.equals(outputPath.toString())) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<Path> files = new ArrayList<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        if (Files.isRegularFile(outputPath)) {
+            // a container or an index, written by this run
+            files.add(outputPath);
+            Path parent = outputPath.toAbsolutePath().getParent();
+            if (parent != null) {
+                directories.add(parent);
+            }
+        } else {
+            Path root = outputPath.toAbsolutePath().normalize();
+            for (Path file : writtenFiles) {
+                if (durability == Durability.BATCH) {
+                    files.add(file);
+                }
+                // the directories created for the file up to the output directory, named in their parents
+                for (Path directory = file.getParent(); directory != null && directory.startsWith(root); directory = directory.getParent()) {
+                    if (!directories.add(directory)) {
+                        break;
+                    }
+                }
+            }
+            writtenFiles.clear();
+        }
+        List<ExtractionTaskRunner.ExtractionTask> tasks = new ArrayList<>();
+        for (int i = 0; i < files.size(); i += FILES_PER_TASK) {
+            List<Path> taskFiles = files.subList(i, Math.min(files.size(), i + FILES_PER_TASK));
+            tasks.add(() -> {
+                for (Path file : taskFiles) {
+                    force(file);
+                }
+            });
+        }
+        taskRunner.run(() -> taskRunner.runAll(tasks));
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+        log.info("Output forced to disk : " + files.size() + " files, " + directories.size() + " directories in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void force(Path file) throws IOException {
+        // writing is not needed to force a file, but some systems refuse it on a read only channel
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            // a duplicate dropped once written
+            log.debug("Not forcing deleted file : " + file);
+        }
+    }
+
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on every system, their entries are then forced along with the files
+            log.debug("Cannot force directory : " + directory + " : " + e.getMessage());
+        }
+    }
+}
@@ -1,10 +1,32 @@
 package org.example.impl;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class OutputFileNameGenerator {
-    private int outputFileCounter = 0;
+    private final AtomicInteger outputFileCounter;
+
+    private final String extension;
+
+    public OutputFileNameGenerator() {
+        this(0);
+    }
+
+    /**
+     * Generator continuing after the given file number, for output directories already holding emails.
+     */
+    public OutputFileNameGenerator(int lastFileNumber) {
+        this(lastFileNumber, "");
+    }
+
+    /**
+     * @param compressionExtension added after {@code .eml} to the names of compressed emails, empty if none
+     */
+    OutputFileNameGenerator(int lastFileNumber, String compressionExtension) {
+        this.outputFileCounter = new AtomicInteger(lastFileNumber);
+        this.extension = ".eml" + compressionExtension;
+    }
 
     public String generateNewOutputFileName() {
-        outputFileCounter++;
-        return "test" + outputFileCounter + ".eml";
+        return "test" + outputFileCounter.incrementAndGet() + extension;
     }
 }
@@ -0,0 +1,131 @@
+package org.example.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.example.OutputNaming;
+
+/**
+ * Names of the extracted emails below the output path, for the {@link OutputNaming#PATH} and
+ * {@link OutputNaming#CONTENT} namings. The name is the SHA-256 of the extraction path or of the email,
+ * so it is the same in every run whatever the order entries are processed in. Emails are spread over
+ * {@code shardDepth} levels of subdirectories named after the first bytes of the hash, {@code ab/cd/abcd...eml},
+ * which keeps directories small however many emails are extracted.
+ * <p>
+ * Names are relative to the output path with {@code /} separators.
+ */
+class OutputLayout {
+
+    private final Path outputPath;
+
+    private final int shardDepth;
+
+    private final String extension;
+
+    private final Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param compressionExtension added after {@code .eml} to the names of compressed emails, empty if none
+     */
+    OutputLayout(Path outputPath, int shardDepth, String compressionExtension) {
+        if (shardDepth < 0 || shardDepth > 8) {
+            throw new IllegalArgumentException("Shard depth should be between 0 and 8 : " + shardDepth);
+        }
+        this.outputPath = outputPath;
+        this.shardDepth = shardDepth;
+        this.extension = ".eml" + compressionExtension;
+    }
+
+    /**
+     * Name of the email found at the given path.
+     */
+    String nameOf(ExtractionPath extractionPath) {
+        return shard(DigestUtils.sha256Hex(extractionPath.toNameKey()));
+    }
+
+    /**
+     * Name of an output file, relative to the output path.
+     */
+    String nameOf(File file) {
+        Path relative = outputPath.toAbsolutePath().normalize().relativize(file.toPath().toAbsolutePath().normalize());
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * File of the given name, its directory is created if needed.
+     */
+    File fileOf(String name) throws IOException {
+        File file = new File(outputPath.toFile(), name);
+        Path directory = file.toPath().getParent();
+        if (directory != null && !createdDirectories.contains(directory)) {
+            Files.createDirectories(directory);
+            createdDirectories.add(directory);
+        }
+        return file;
+    }
+
+    /**
+     * Wraps the stream writing an email to the temporary {@code writtenFile}. Once the email is committed
+     * it is moved to the file named after its content, or removed when that file already holds the same
+     * content, and {@code namedFile} is given the file now holding the email. An aborted email keeps no name.
+     */
+    EmailOutputStream wrapContentNamed(EmailOutputStream out, File writtenFile, Consumer<File> namedFile) {
+        return new ContentNamedOutputStream(out, writtenFile, namedFile);
+    }
+
+    private String shard(String hash) {
+        StringBuilder sb = new StringBuilder(hash.length() + 3 * shardDepth + extension.length());
+        for (int level = 0; level < shardDepth; level++) {
+            sb.append(hash, 2 * level, 2 * level + 2).append('/');
+        }
+        return sb.append(hash).append(extension).toString();
+    }
+
+    private class ContentNamedOutputStream extends EmailOutputStream {
+
+        private final File writtenFile;
+
+        private final Consumer<File> namedFile;
+
+        private final MessageDigest digest = DigestUtils.getSha256Digest();
+
+        ContentNamedOutputStream(EmailOutputStream out, File writtenFile, Consumer<File> namedFile) {
+            super(out);
+            this.writtenFile = writtenFile;
+            this.namedFile = namedFile;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+        }
+
+        @Override
+        protected void committed() throws IOException {
+            File file = fileOf(shard(Hex.encodeHexString(digest.digest())));
+            try {
+                Files.move(writtenFile.toPath(), file.toPath());
+            } catch (FileAlreadyExistsException e) {
+                // the same email was extracted before
+                Files.delete(writtenFile.toPath());
+            }
+            namedFile.accept(file);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decouples reading of the extracted messages from writing them. The extraction thread reads a message
+ * into memory and hands it over to a writer thread. The memory held by messages waiting to be written
+ * is bounded, so a slow output disk blocks the readers instead of filling the heap. Messages are held in
+ * chunks taken from the buffer pool, returned once written. A message the in-flight limit cannot hold is
+ * written by the extraction thread itself, from the chunks already read and the rest of its stream.
+ * <p>
+ * Messages of a single chunk are queued in batches written by one writer task: for small files creating and
+ * closing them is most of the work, and a hand over per file would cost as much again.
+ */
+class OutputPipeline implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(OutputPipeline.class);
+
+    interface OutputOpener {
+        EmailOutputStream open() throws IOException;
+    }
+
+    /**
+     * Small messages written by one writer task.
+     */
+    private static final int BATCH_SIZE = 32;
+
+    private record QueuedMessage(OutputOpener outputOpener, Runnable skipped, List<byte[]> chunks, int tailLength, int heldBytes) {
+    }
+
+    private final BufferPool bufferPool;
+
+    private final int chunkSize;
+
+    private final int inFlightLimit;
+
+    private final Semaphore inFlightBytes;
+
+    private final ExecutorService writers;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final Object pendingLock = new Object();
+
+    private int pendingWrites = 0;
+
+    private final Object batchLock = new Object();
+
+    private List<QueuedMessage> batch = new ArrayList<>();
+
+    OutputPipeline(
+            int writerThreads,
+            BufferPool bufferPool,
+            long inFlightLimit
+    ) {
+        int chunkSize = bufferPool.getBufferSize();
+        if (inFlightLimit < chunkSize) {
+            throw new IllegalArgumentException("In-flight limit should be at least the buffer size : " + inFlightLimit);
+        }
+        this.bufferPool = bufferPool;
+        this.chunkSize = chunkSize;
+        this.inFlightLimit = (int) Math.min(Integer.MAX_VALUE, inFlightLimit);
+        this.inFlightBytes = new Semaphore(this.inFlightLimit);
+        this.writers = Executors.newFixedThreadPool(writerThreads, writerThreadFactory());
+    }
+
+    /**
+     * Reads the message on the calling thread and queues it for writing. Messages too large for the
+     * in-flight limit are written directly by the calling thread.
+     *
+     * @param skipped run by the writer thread when a limit stops the queued message, the calling thread
+     *                has moved on and cannot see the failure
+     */
+    void write(OutputOpener outputOpener, InputStream inputStream, Runnable skipped) throws IOException {
+        rethrowFailure();
+        List<byte[]> chunks = new ArrayList<>();
+        int heldBytes = 0;
+        // bytes used in the last chunk
+        int tailLength = chunkSize;
+        boolean queued = false;
+        try {
+            while (true) {
+                // block only while holding nothing, readers waiting with partially buffered messages could starve each other
+                if (chunks.isEmpty()) {
+                    if (!inFlightBytes.tryAcquire(chunkSize)) {
+                        // messages waiting for their batch to fill hold memory only the writers can free
+                        submitBatch();
+                        acquire(chunkSize);
+                    }
+                } else if ((long) heldBytes + chunkSize > inFlightLimit || !inFlightBytes.tryAcquire(chunkSize)) {
+                    log.debug("Message exceeds in-flight limit, writing directly");
+                    writeDirectly(outputOpener, chunks, inputStream);
+                    return;
+                }
+                heldBytes += chunkSize;
+                byte[] chunk = bufferPool.acquireArray();
+                chunks.add(chunk);
+                int read = IOUtils.read(inputStream, chunk);
+                if (read < chunkSize) {
+                    inFlightBytes.release(chunkSize - read);
+                    heldBytes -= chunkSize - read;
+                    if (read > 0) {
+                        tailLength = read;
+                    } else {
+                        chunks.remove(chunks.size() - 1);
+                        bufferPool.releaseArray(chunk);
+                    }
+                    break;
+                }
+            }
+
+            QueuedMessage message = new QueuedMessage(outputOpener, skipped, chunks, tailLength, heldBytes);
+            if (chunks.size() > 1) {
+                submit(List.of(message));
+                queued = true;
+                return;
+            }
+            List<QueuedMessage> fullBatch = null;
+            synchronized (batchLock) {
+                batch.add(message);
+                if (batch.size() >= BATCH_SIZE) {
+                    fullBatch = batch;
+                    batch = new ArrayList<>();
+                }
+            }
+            queued = true;
+            if (fullBatch != null) {
+                submit(fullBatch);
+            }
+        } finally {
+            if (!queued) {
+                releaseChunks(chunks);
+                inFlightBytes.release(heldBytes);
+            }
+        }
+    }
+
+    /**
+     * Waits until every queued message is written and rethrows the first write failure.
+     */
+    void awaitCompletion() throws IOException {
+        submitBatch();
+        synchronized (pendingLock) {
+            while (pendingWrites > 0) {
+                try {
+                    pendingLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for output writes");
+                }
+            }
+        }
+        rethrowFailure();
+    }
+
+    @Override
+    public void close() {
+        // queued messages are written before the writers stop
+        submitBatch();
+        writers.shutdown();
+    }
+
+    private void submitBatch() {
+        List<QueuedMessage> queued;
+        synchronized (batchLock) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            queued = batch;
+            batch = new ArrayList<>();
+        }
+        submit(queued);
+    }
+
+    private void submit(List<QueuedMessage> messages) {
+        synchronized (pendingLock) {
+            pendingWrites++;
+        }
+        writers.execute(() -> {
+            try {
+                for (QueuedMessage message : messages) {
+                    writeMessage(message);
+                }
+            } finally {
+                synchronized (pendingLock) {
+                    pendingWrites--;
+                    pendingLock.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void writeMessage(QueuedMessage message) {
+        try {
+            writeChunks(message.outputOpener(), message.chunks(), message.tailLength());
+        } catch (QuotaExceededException e) {
+            // only this email is lost, the quota keeps the count
+            log.warn("Email skipped, " + e.getMessage());
+            message.skipped().run();
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            releaseChunks(message.chunks());
+            inFlightBytes.release(message.heldBytes());
+        }
+    }
+
+    private void writeChunks(OutputOpener outputOpener, List<byte[]> chunks, int tailLength) throws IOException {
+        try (EmailOutputStream out = outputOpener.open()) {
+            for (int i = 0; i < chunks.size(); i++) {
+                out.write(chunks.get(i), 0, i == chunks.size() - 1 ? tailLength : chunkSize);
+            }
+            out.commit();
+        }
+    }
+
+    private void writeDirectly(OutputOpener outputOpener, List<byte[]> chunks, InputStream remaining) throws IOException {
+        // every chunk held is full, the message did not end yet
+        try (EmailOutputStream out = outputOpener.open()) {
+            for (byte[] chunk : chunks) {
+                out.write(chunk);
+            }
+            byte[] buffer = chunks.isEmpty() ? bufferPool.acquireArray() : chunks.get(0);
+            try {
+                IOUtils.copyLarge(remaining, out, buffer);
+            } finally {
+                if (chunks.isEmpty()) {
+                    bufferPool.releaseArray(buffer);
+                }
+            }
+            // read to the end without failing, the email is kept
+            out.commit();
+        }
+    }
+
+    private void releaseChunks(List<byte[]> chunks) {
+        for (byte[] chunk : chunks) {
+            bufferPool.releaseArray(chunk);
+        }
+        chunks.clear();
+    }
+
+    private void acquire(int bytes) throws InterruptedIOException {
+        try {
+            inFlightBytes.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for output writes");
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable throwable = failure.get();
+        if (throwable instanceof IOException e) {
+            throw e;
+        }
+        if (throwable instanceof RuntimeException e) {
+            throw e;
+        }
+    }
+
+    private static ThreadFactory writerThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,191 @@
+package org.example.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Single container file receiving all the extracted emails, instead of one file per email in the
+ * output directory. The container is written front to back, so it can also be standard output.
+ * <p>
+ * Emails are extracted concurrently but entries cannot interleave: every email is spooled, in memory
+ * or in a temporary file past {@link #SPOOL_THRESHOLD}, and appended in one piece once its stream is
+ * closed. Entries follow the order emails are completed in. An email whose writing is aborted, because a
+ * limit stopped it or reading it failed, is dropped along with its spool and never reaches the container.
+ */
+abstract class OutputSink implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(OutputSink.class);
+
+    /**
+     * Output path writing the container to standard output.
+     */
+    static final String STANDARD_OUTPUT = "-";
+
+    private static final int SPOOL_THRESHOLD = 4 * 1024 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+
+    private final boolean standardOutput;
+
+    private final File spoolDirectory;
+
+    private final byte[] copyBuffer = new byte[WRITE_BUFFER_SIZE];
+
+    private boolean closed = false;
+
+    OutputSink(Path path) throws IOException {
+        this.standardOutput = STANDARD_OUTPUT.equals(path.toString());
+        if (standardOutput) {
+            // System.out is pointed at System.err by the extract command, printing does not end up in the container
+            this.out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), WRITE_BUFFER_SIZE);
+            this.spoolDirectory = null;
+            log.info("Writing emails to standard output");
+        } else {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.out = new BufferedOutputStream(Files.newOutputStream(path), WRITE_BUFFER_SIZE);
+            this.spoolDirectory = parent == null ? null : parent.toFile();
+            log.info("Writing emails to : " + path);
+        }
+    }
+
+    /**
+     * Stream receiving one email, appended to the container under the given name when closed.
+     */
+    EntryOutputStream open(String name) {
+        return new EntryOutputStream(name);
+    }
+
+    /**
+     * Appends one entry to the container.
+     *
+     * @param out  the container stream
+     * @param crc  CRC-32 of the content
+     */
+    protected abstract void writeEntry(OutputStream out, String name, long size, long crc, InputStream content) throws IOException;
+
+    /**
+     * Writes whatever ends the container after the last entry.
+     */
+    protected abstract void finish(OutputStream out) throws IOException;
+
+    /**
+     * Copies entry content, only while appending an entry.
+     */
+    protected void copy(InputStream content, OutputStream out) throws IOException {
+        IOUtils.copyLarge(content, out, copyBuffer);
+    }
+
+    private synchronized void append(String name, long size, long crc, InputStream content) throws IOException {
+        if (closed) {
+            throw new IOException("Output container already closed, cannot add : " + name);
+        }
+        writeEntry(out, name, size, crc, content);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish(out);
+            out.flush();
+        } finally {
+            // standard output stays open for the JVM
+            if (!standardOutput) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Stream of one email, appended when closed or dropped when aborted.
+     */
+    class EntryOutputStream extends OutputStream {
+
+        private final String name;
+
+        private final DeferredFileOutputStream spool;
+
+        private final CRC32 crc = new CRC32();
+
+        private long size = 0;
+
+        private boolean closed = false;
+
+        EntryOutputStream(String name) {
+            this.name = name;
+            this.spool = new DeferredFileOutputStream(SPOOL_THRESHOLD, ".spool", ".eml", spoolDirectory);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            spool.write(b);
+            crc.update(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            spool.write(b, off, len);
+            crc.update(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            spool.close();
+            try (InputStream content = spool.toInputStream()) {
+                append(name, size, crc.getValue(), content);
+            } finally {
+                deleteSpool();
+            }
+        }
+
+        /**
+         * Closes the stream without appending the email, which is incomplete.
+         */
+        void abort() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                spool.close();
+            } finally {
+                deleteSpool();
+            }
+            log.debug("Entry dropped from the container : " + name);
+        }
+
+        private void deleteSpool() throws IOException {
+            if (!spool.isInMemory()) {
+                Files.deleteIfExists(spool.getFile().toPath());
+            }
+        }
+    }
+}
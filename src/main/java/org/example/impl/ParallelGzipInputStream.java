@@ -0,0 +1,319 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.output.UnsynchronizedByteArrayOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Content of a gzip file made of several members, such as the output of {@code pigz}, {@code bgzip} or
+ * concatenated gzip files, inflated on several threads.
+ * <p>
+ * Where a member ends is only known once it is inflated, so members are inflated speculatively: the file
+ * is scanned ahead for bytes looking like a member header, and a task inflates from each of them. The
+ * members really read are the chain starting at the beginning of the file, each one starting where the
+ * previous one ended, the results of the other tasks are dropped. A task keeps at most
+ * {@link #MEMBER_BUFFER_LIMIT} inflated bytes, the reader inflates the rest of a larger member itself,
+ * so a file of a single large member is read like a plain gzip stream.
+ * <p>
+ * Like a {@link java.util.zip.GZIPInputStream}, bytes after the last member which are not a member are
+ * ignored.
+ */
+class ParallelGzipInputStream extends InputStream {
+
+    private static final Logger log = LogManager.getLogger(ParallelGzipInputStream.class);
+
+    /**
+     * Inflated bytes kept in memory by a task inflating ahead of the reader.
+     */
+    static final int MEMBER_BUFFER_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * How far after the member being read the file is scanned for the next members.
+     */
+    private static final long SCAN_AHEAD = 64L * 1024 * 1024;
+
+    private static final int SCAN_BLOCK_SIZE = 1024 * 1024;
+
+    private static final int HEADER_LENGTH = 4;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final BufferPool bufferPool;
+
+    private final ExecutorService executor;
+
+    /**
+     * Members inflated ahead of the reader at most.
+     */
+    private final int window;
+
+    private final TreeMap<Long, CompletableFuture<Member>> speculative = new TreeMap<>();
+
+    private final ArrayDeque<Long> candidates = new ArrayDeque<>();
+
+    private final ByteBuffer scanBuffer = ByteBuffer.allocate(SCAN_BLOCK_SIZE + HEADER_LENGTH - 1);
+
+    private long scanned = 0;
+
+    /**
+     * Start of the member being read, or of the next one.
+     */
+    private volatile long offset = 0;
+
+    private Member current;
+
+    private InputStream currentStream;
+
+    private int members = 0;
+
+    private boolean closed = false;
+
+    ParallelGzipInputStream(FileChannel channel, BufferPool bufferPool, int threads) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.bufferPool = bufferPool;
+        this.window = 2 * threads;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "gzip-inflate-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Compressed bytes read so far.
+     */
+    long getPosition() {
+        return offset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int count = read(single, 0, 1);
+        return count < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (currentStream == null && !nextMember()) {
+                return -1;
+            }
+            int count = currentStream.read(b, off, len);
+            if (count >= 0) {
+                return count;
+            }
+            offset = current.getEnd();
+            current.close();
+            current = null;
+            currentStream = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (current != null) {
+                current.close();
+            }
+        } finally {
+            for (CompletableFuture<Member> future : speculative.values()) {
+                future.thenAccept(Member::closeQuietly);
+            }
+            speculative.clear();
+            executor.shutdown();
+        }
+    }
+
+    private boolean nextMember() throws IOException {
+        if (offset >= size) {
+            return false;
+        }
+        speculate();
+        CompletableFuture<Member> future = speculative.remove(offset);
+        Member member;
+        if (future != null) {
+            try {
+                member = future.join();
+            } catch (CompletionException e) {
+                throw new IOException("Cannot inflate gzip member at : " + offset, e.getCause());
+            }
+        } else if (members > 0 && !isHeader(offset)) {
+            log.debug("Ignoring " + (size - offset) + " bytes after the last gzip member");
+            offset = size;
+            return false;
+        } else {
+            // not found by the scan, only its start is read here
+            member = inflate(offset);
+        }
+        if (member.error != null) {
+            throw member.error;
+        }
+        members++;
+        current = member;
+        currentStream = member.rest == null
+                ? member.inflated.toInputStream()
+                : new SequenceInputStream(member.inflated.toInputStream(), member.rest);
+        return true;
+    }
+
+    /**
+     * Starts inflating the members which may follow the current one, drops those which cannot any more.
+     */
+    private void speculate() throws IOException {
+        Iterator<Map.Entry<Long, CompletableFuture<Member>>> iterator = speculative.headMap(offset).entrySet().iterator();
+        while (iterator.hasNext()) {
+            // was inside the previous members
+            iterator.next().getValue().thenAccept(Member::closeQuietly);
+            iterator.remove();
+        }
+        if (scanned < offset) {
+            // the previous member was larger than the scan
+            candidates.clear();
+            scanned = offset;
+        }
+        while (speculative.size() < window) {
+            Long candidate = nextCandidate();
+            if (candidate == null) {
+                break;
+            }
+            if (candidate < offset || speculative.containsKey(candidate)) {
+                continue;
+            }
+            long start = candidate;
+            speculative.put(start, CompletableFuture.supplyAsync(() -> inflate(start), executor));
+        }
+    }
+
+    private Long nextCandidate() throws IOException {
+        long scanLimit = Math.min(size, offset + SCAN_AHEAD);
+        while (candidates.isEmpty() && scanned < scanLimit) {
+            scanBlock();
+        }
+        return candidates.poll();
+    }
+
+    private void scanBlock() throws IOException {
+        scanBuffer.clear();
+        int read = 0;
+        while (scanBuffer.hasRemaining()) {
+            int count = channel.read(scanBuffer, scanned + read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        int blockLength = (int) Math.min(SCAN_BLOCK_SIZE, size - scanned);
+        byte[] bytes = scanBuffer.array();
+        for (int i = 0; i < blockLength && i + HEADER_LENGTH <= read; i++) {
+            if (bytes[i] == 0x1f && GzipMemberInputStream.isHeader(bytes[i], bytes[i + 1], bytes[i + 2], bytes[i + 3])) {
+                candidates.add(scanned + i);
+            }
+        }
+        scanned += blockLength;
+    }
+
+    private boolean isHeader(long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) < 0) {
+                return false;
+            }
+        }
+        byte[] bytes = header.array();
+        return GzipMemberInputStream.isHeader(bytes[0], bytes[1], bytes[2], bytes[3]);
+    }
+
+    /**
+     * Inflates the start of the member at the given position, failures are kept in the result.
+     */
+    private Member inflate(long start) {
+        Member member = new Member();
+        byte[] buffer = bufferPool.acquireArray();
+        try {
+            GzipMemberInputStream in = new GzipMemberInputStream(
+                    new FileRangeInputStream(channel, start, size - start, bufferPool),
+                    start,
+                    bufferPool
+            );
+            member.rest = in;
+            int count;
+            while (member.inflated.size() < MEMBER_BUFFER_LIMIT && (count = in.read(buffer, 0, buffer.length)) >= 0) {
+                member.inflated.write(buffer, 0, count);
+            }
+            if (in.getEnd() >= 0) {
+                member.end = in.getEnd();
+                member.rest = null;
+                in.close();
+            }
+        } catch (IOException e) {
+            member.closeQuietly();
+            member.error = e;
+        } finally {
+            bufferPool.releaseArray(buffer);
+        }
+        return member;
+    }
+
+    /**
+     * Start of a member inflated in memory, and the stream inflating the rest if it was too large.
+     */
+    private static class Member {
+
+        private final UnsynchronizedByteArrayOutputStream inflated = new UnsynchronizedByteArrayOutputStream();
+
+        private GzipMemberInputStream rest;
+
+        private long end = -1;
+
+        private IOException error;
+
+        long getEnd() {
+            return rest == null ? end : rest.getEnd();
+        }
+
+        void close() throws IOException {
+            if (rest != null) {
+                rest.close();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                log.debug("Cannot close gzip member : " + e.getMessage());
+            }
+        }
+    }
+}
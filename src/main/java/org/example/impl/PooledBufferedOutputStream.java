@@ -0,0 +1,81 @@
+package org.example.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output stream whose buffer is taken from a {@link BufferPool} and given back on close.
+ */
+class PooledBufferedOutputStream extends FilterOutputStream {
+
+    private final BufferPool bufferPool;
+
+    private byte[] buffer;
+
+    private int count;
+
+    PooledBufferedOutputStream(OutputStream out, BufferPool bufferPool) {
+        super(out);
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquireArray();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len >= buffer.length) {
+            // larger than the buffer, no point copying it
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try (OutputStream closing = out) {
+            flushBuffer();
+        } finally {
+            bufferPool.releaseArray(buffer);
+            buffer = null;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.example.impl;
+
+import java.io.IOException;
+
+/**
+ * A limit of the {@link ExtractionQuota} was reached, the email or archive entry being read is skipped.
+ */
+class QuotaExceededException extends IOException {
+
+    QuotaExceededException(String message) {
+        super(message);
+    }
+}
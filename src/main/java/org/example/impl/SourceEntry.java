@@ -0,0 +1,53 @@
+package org.example.impl;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * An input file, archive entry or attachment about to be extracted.
+ *
+ * @param name        file name, may be null for unnamed attachments
+ * @param ordinal     position among the entries of the enclosing container
+ * @param fingerprint what is known about the content before reading it (CRC, size), empty if nothing
+ * @param offset      position of the entry in the enclosing file, -1 if unknown
+ * @param size        uncompressed size, -1 if unknown
+ */
+record SourceEntry(String name, int ordinal, String fingerprint, long offset, long size) {
+
+    SourceEntry(String name, int ordinal) {
+        this(name, ordinal, "");
+    }
+
+    SourceEntry(String name, int ordinal, String fingerprint) {
+        this(name, ordinal, fingerprint, -1, -1);
+    }
+
+    /**
+     * Identifies the entry within its container, changes when a new version of the entry is extracted.
+     * Entries with a fingerprint keep their identity when other entries are added before them.
+     */
+    String identity() {
+        return fingerprint.isEmpty() ? name + "#" + ordinal : name + "@" + fingerprint;
+    }
+
+    static SourceEntry of(ZipCentralDirectory.Entry entry, int ordinal) {
+        return new SourceEntry(
+                entry.name(),
+                ordinal,
+                String.format("%08x:%d", entry.crc(), entry.size()),
+                entry.localHeaderOffset(),
+                entry.size()
+        );
+    }
+
+    static SourceEntry of(ZipEntry entry, int ordinal) {
+        // sizes of entries followed by a data descriptor are only known once they are read
+        boolean known = entry.getCrc() >= 0 && entry.getSize() >= 0;
+        return new SourceEntry(
+                entry.getName(),
+                ordinal,
+                known ? String.format("%08x:%d", entry.getCrc(), entry.getSize()) : "",
+                -1,
+                entry.getSize()
+        );
+    }
+}
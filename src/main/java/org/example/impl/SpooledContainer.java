@@ -0,0 +1,119 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Nested container copied out of its stream so that it can be read at random, like a file on disk.
+ * <p>
+ * A container up to the threshold is kept on the heap. A larger one goes to a temporary file which is
+ * memory-mapped, the page cache holds it rather than the heap, and the file is deleted on close.
+ */
+class SpooledContainer implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(SpooledContainer.class);
+
+    /**
+     * Heap allocated first, grown as the container turns out larger.
+     */
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private final ByteBuffer content;
+
+    private final Path file;
+
+    private SpooledContainer(ByteBuffer content, Path file) {
+        this.content = content;
+        this.file = file;
+    }
+
+    /**
+     * Reads the stream to its end.
+     *
+     * @param threshold largest container kept on the heap
+     * @param directory where temporary files are created, the default temporary directory if null
+     */
+    static SpooledContainer spool(InputStream in, int threshold, Path directory, BufferPool bufferPool) throws IOException {
+        byte[] heap = new byte[Math.min(threshold, INITIAL_CAPACITY) + 1];
+        int length = 0;
+        while (true) {
+            if (length == heap.length) {
+                if (length > threshold) {
+                    break;
+                }
+                // one byte past the threshold tells whether the stream is larger
+                heap = Arrays.copyOf(heap, (int) Math.min((long) threshold + 1, 2L * length));
+            }
+            int count = in.read(heap, length, heap.length - length);
+            if (count < 0) {
+                return new SpooledContainer(ByteBuffer.wrap(heap, 0, length).slice().asReadOnlyBuffer(), null);
+            }
+            length += count;
+        }
+        Path file = directory != null
+                ? Files.createTempFile(directory, "spool-", ".tmp")
+                : Files.createTempFile("spool-", ".tmp");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap(heap, 0, length));
+            heap = null;
+            byte[] buffer = bufferPool.acquireArray();
+            try {
+                int count;
+                while ((count = in.read(buffer, 0, buffer.length)) >= 0) {
+                    writeFully(channel, ByteBuffer.wrap(buffer, 0, count));
+                }
+            } finally {
+                bufferPool.releaseArray(buffer);
+            }
+            long size = channel.size();
+            log.debug("Spooled " + size + " bytes to " + file);
+            if (size > Integer.MAX_VALUE) {
+                // a buffer cannot map it, the file is read with positional reads instead
+                return new SpooledContainer(null, file);
+            }
+            // the mapping outlives the channel
+            return new SpooledContainer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Content of the container, on the heap or mapped, null if it is too large for a buffer.
+     */
+    ByteBuffer getContent() {
+        return content != null ? content.duplicate() : null;
+    }
+
+    /**
+     * Temporary file holding the container, null if it is on the heap.
+     */
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            // the pages stay readable by whoever still holds the mapping until it is collected
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Tar archive of the extracted emails, in the POSIX ustar format understood by every tar.
+ */
+class TarOutputSink extends OutputSink {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_LENGTH = 100;
+
+    /**
+     * Largest entry a ustar header can describe, 11 octal digits.
+     */
+    private static final long MAX_SIZE = 077777777777L;
+
+    private final long modificationTime = System.currentTimeMillis() / 1000;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    TarOutputSink(Path path) throws IOException {
+        super(path);
+    }
+
+    @Override
+    protected void writeEntry(OutputStream out, String name, long size, long crc, InputStream content) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > NAME_LENGTH) {
+            throw new IOException("Name too long for a tar entry : " + name);
+        }
+        if (size > MAX_SIZE) {
+            throw new IOException("Email too large for a tar entry : " + name + ", " + size + " bytes");
+        }
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(100, 8, 0644);
+        putOctal(108, 8, 0);
+        putOctal(116, 8, 0);
+        putOctal(124, 12, size);
+        putOctal(136, 12, modificationTime);
+        // checksum computed with its own field made of spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        header[156] = '0';
+        put(257, "ustar\0");
+        put(263, "00");
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putOctal(148, 7, checksum);
+        out.write(header);
+        copy(content, out);
+        int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        out.write(new byte[padding]);
+    }
+
+    @Override
+    protected void finish(OutputStream out) throws IOException {
+        // end of archive, two empty blocks
+        out.write(new byte[2 * BLOCK_SIZE]);
+    }
+
+    /**
+     * Octal number padded with zeros, ending with a NUL byte.
+     */
+    private void putOctal(int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        String padded = "0".repeat(Math.max(0, length - 1 - octal.length())) + octal;
+        put(offset, padded);
+        header[offset + length - 1] = 0;
+    }
+
+    private void put(int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+}
@@ -0,0 +1,326 @@
+package org.example.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads the entries of a tar stream one after another, like a {@link java.util.zip.ZipInputStream}
+ * reads its entries. Understands ustar headers, GNU long names and base-256 sizes, and pax extended
+ * headers for the path and size.
+ * <p>
+ * Skipping an entry relies on {@link InputStream#skip(long)}, which costs nothing on a file.
+ * The underlying stream is not closed.
+ */
+class TarReader implements Closeable {
+
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * Longest GNU long name or pax header read, larger ones are not file metadata.
+     */
+    private static final int MAX_METADATA_SIZE = 1024 * 1024;
+
+    /**
+     * Entry of the archive.
+     *
+     * @param name       path of the entry in the archive
+     * @param size       bytes of content
+     * @param file       whether it is a regular file, directories and links are not
+     * @param dataOffset position of the content in the archive stream
+     */
+    record Entry(String name, long size, boolean file, long dataOffset) {
+    }
+
+    private final InputStream in;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    private long position = 0;
+
+    /**
+     * Bytes of the current entry, padding included, not read yet.
+     */
+    private long remaining = 0;
+
+    /**
+     * Content bytes of the current entry not read yet.
+     */
+    private long remainingContent = 0;
+
+    private final EntryInputStream entryStream = new EntryInputStream();
+
+    TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Next entry, what was left of the previous one is skipped. Null at the end of the archive.
+     */
+    Entry nextEntry() throws IOException {
+        String longName = null;
+        String paxPath = null;
+        long paxSize = -1;
+        while (true) {
+            skipRemaining();
+            if (!readHeader()) {
+                return null;
+            }
+            char type = (char) header[156];
+            long size = parseSize();
+            startEntry(size);
+            switch (type) {
+                case 'L' -> {
+                    longName = trimNul(readMetadata(size));
+                    continue;
+                }
+                case 'x' -> {
+                    String pax = readMetadata(size);
+                    paxPath = paxValue(pax, "path", paxPath);
+                    String sizeValue = paxValue(pax, "size", null);
+                    if (sizeValue != null) {
+                        paxSize = parsePaxSize(sizeValue);
+                    }
+                    continue;
+                }
+                case 'g', 'K' -> {
+                    // global pax headers and long link names say nothing of the next file
+                    continue;
+                }
+                default -> {
+                }
+            }
+            if (paxSize >= 0) {
+                startEntry(paxSize);
+            }
+            String name = paxPath != null ? paxPath : longName != null ? longName : headerName();
+            boolean file = type == '0' || type == '\0' || type == '7';
+            return new Entry(name, remainingContent, file, position);
+        }
+    }
+
+    /**
+     * Content of the current entry, closing it does nothing.
+     */
+    InputStream entryStream() {
+        return entryStream;
+    }
+
+    @Override
+    public void close() {
+        // the underlying stream belongs to the caller
+    }
+
+    private boolean readHeader() throws IOException {
+        int read = IOUtils.read(in, header);
+        position += read;
+        if (read == 0) {
+            return false;
+        }
+        if (read < BLOCK_SIZE) {
+            throw new IOException("Truncated tar header at : " + (position - read));
+        }
+        if (isZeroBlock()) {
+            // end of archive marker
+            return false;
+        }
+        if (!checksumMatches()) {
+            throw new IOException("Invalid tar header checksum at : " + (position - BLOCK_SIZE));
+        }
+        return true;
+    }
+
+    private void startEntry(long size) {
+        remainingContent = size;
+        remaining = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private void skipRemaining() throws IOException {
+        // InputStream.skip and not IOUtils.skip, which reads what it skips
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Truncated tar entry");
+                }
+                skipped = 1;
+            }
+            position += skipped;
+            remaining -= skipped;
+        }
+        remainingContent = 0;
+    }
+
+    private String readMetadata(long size) throws IOException {
+        if (size > MAX_METADATA_SIZE) {
+            throw new IOException("Tar metadata entry too large : " + size + " bytes");
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) size);
+        IOUtils.copyLarge(entryStream, content);
+        return content.toString(StandardCharsets.UTF_8);
+    }
+
+    private String headerName() {
+        String name = field(0, 100);
+        // ustar splits long paths between the prefix and the name
+        if (field(257, 5).equals("ustar")) {
+            String prefix = field(345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private long parseSize() throws IOException {
+        if ((header[124] & 0x80) != 0) {
+            // base-256, big-endian two's complement after the marker bit, the next bit is the sign
+            if ((header[124] & 0x40) != 0) {
+                throw new IOException("Negative size in tar header");
+            }
+            long size = header[124] & 0x3F;
+            for (int i = 125; i < 136; i++) {
+                if (size > Long.MAX_VALUE >>> 8) {
+                    throw new IOException("Size too large in tar header");
+                }
+                size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+        }
+        return parseOctal(124, 12);
+    }
+
+    private static long parsePaxSize(String value) throws IOException {
+        long size;
+        try {
+            size = Long.parseLong(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid size in pax header : " + value, e);
+        }
+        if (size < 0) {
+            throw new IOException("Negative size in pax header : " + value);
+        }
+        return size;
+    }
+
+    private long parseOctal(int offset, int length) throws IOException {
+        long value = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end && (header[i] == ' ' || header[i] == 0)) {
+            i++;
+        }
+        for (; i < end && header[i] != ' ' && header[i] != 0; i++) {
+            if (header[i] < '0' || header[i] > '7') {
+                throw new IOException("Invalid octal number in tar header : " + field(offset, length));
+            }
+            value = (value << 3) + (header[i] - '0');
+        }
+        return value;
+    }
+
+    private boolean checksumMatches() throws IOException {
+        long expected = parseOctal(148, 8);
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            byte b = i >= 148 && i < 156 ? (byte) ' ' : header[i];
+            unsigned += b & 0xFF;
+            signed += b;
+        }
+        // some old writers summed signed bytes
+        return expected == unsigned || expected == signed;
+    }
+
+    private boolean isZeroBlock() {
+        for (byte b : header) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String field(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String trimNul(String value) {
+        int end = value.indexOf('\0');
+        return end < 0 ? value : value.substring(0, end);
+    }
+
+    /**
+     * Value of a key in pax records, "length key=value\n" each.
+     */
+    private static String paxValue(String pax, String key, String defaultValue) {
+        String value = defaultValue;
+        int offset = 0;
+        while (offset < pax.length()) {
+            int space = pax.indexOf(' ', offset);
+            int lineEnd = pax.indexOf('\n', offset);
+            if (space < 0 || lineEnd < 0 || space > lineEnd) {
+                break;
+            }
+            String record = pax.substring(space + 1, lineEnd);
+            if (record.startsWith(key + "=")) {
+                value = record.substring(key.length() + 1);
+            }
+            offset = lineEnd + 1;
+        }
+        return value;
+    }
+
+    private class EntryInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            if (remainingContent == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated tar entry");
+            }
+            consumed(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remainingContent == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remainingContent));
+            if (read < 0) {
+                throw new IOException("Truncated tar entry");
+            }
+            consumed(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remainingContent));
+            consumed(skipped);
+            return skipped;
+        }
+
+        private void consumed(long count) {
+            remainingContent -= count;
+            remaining -= count;
+            position += count;
+        }
+    }
+}
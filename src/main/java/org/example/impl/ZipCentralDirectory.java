@@ -0,0 +1,499 @@
+package org.example.impl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Random access to a zip file on disk. The central directory is memory-mapped and parsed up front,
+ * entries are opened on demand with positional reads, so unwanted entries are never read.
+ * Supports ZIP64 and archives whose local headers rely on data descriptors.
+ * <p>
+ * A central directory that does not hold together fails with a {@link ZipException}, so the archive can still be
+ * streamed. The content of an entry read to its end is checked against the CRC and size of the directory, copying a
+ * stored entry file to file does not read it and is not checked.
+ * <p>
+ * The archive may also be held in a buffer, in memory or mapped from a file, entries are then read
+ * straight from the buffer.
+ */
+class ZipCentralDirectory implements Closeable {
+
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int LOC_HEADER_SIZE = 30;
+    private static final int CEN_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_HEADER_SIZE = 56;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer content;
+
+    private final BufferPool bufferPool;
+
+    private final List<Entry> entries;
+
+    record Entry(
+            String name,
+            int method,
+            int flags,
+            long crc,
+            long compressedSize,
+            long size,
+            long localHeaderOffset
+    ) {
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        boolean isEncrypted() {
+            return (flags & 1) != 0;
+        }
+    }
+
+    private ZipCentralDirectory(FileChannel channel, ByteBuffer content, BufferPool bufferPool) throws IOException {
+        this.channel = channel;
+        this.content = content;
+        this.bufferPool = bufferPool;
+        try {
+            this.entries = Collections.unmodifiableList(readEntries());
+        } catch (EOFException e) {
+            // a record of the directory points past the end of the archive
+            throw (ZipException) new ZipException("Invalid central directory, " + e.getMessage()).initCause(e);
+        }
+    }
+
+    static ZipCentralDirectory open(File file, BufferPool bufferPool) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new ZipCentralDirectory(channel, null, bufferPool);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Archive held in the given buffer, from its position to its limit.
+     */
+    static ZipCentralDirectory open(ByteBuffer content, BufferPool bufferPool) throws IOException {
+        return new ZipCentralDirectory(null, content.slice().order(ByteOrder.LITTLE_ENDIAN), bufferPool);
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size();
+        }
+        return total;
+    }
+
+    InputStream getInputStream(Entry entry) throws IOException {
+        if (entry.isEncrypted()) {
+            throw new ZipException("Encrypted entries are not supported : " + entry.name());
+        }
+        long dataOffset = getDataOffset(entry);
+        if (entry.method() == STORED) {
+            return content != null
+                    ? new CheckedEntryInputStream(new ByteBufferInputStream(slice(dataOffset, entry.compressedSize())), new EntryCheck(entry))
+                    : new CheckedFileRangeInputStream(channel, dataOffset, entry.compressedSize(), bufferPool, new EntryCheck(entry));
+        }
+        InputStream raw = content != null
+                ? new ByteBufferInputStream(slice(dataOffset, entry.compressedSize()))
+                : new FileRangeInputStream(channel, dataOffset, entry.compressedSize(), bufferPool);
+        return switch (entry.method()) {
+            case DEFLATED -> new EntryInflaterInputStream(raw, bufferPool, new EntryCheck(entry));
+            default -> throw new ZipException("Unsupported compression method " + entry.method() + " : " + entry.name());
+        };
+    }
+
+    /**
+     * Content of a stored entry, mapped from the file or part of the buffer, nothing is copied. Null if the
+     * entry is compressed or too large for a buffer.
+     */
+    ByteBuffer getStoredContent(Entry entry) throws IOException {
+        if (entry.method() != STORED || entry.isEncrypted() || entry.compressedSize() > Integer.MAX_VALUE) {
+            return null;
+        }
+        long dataOffset = getDataOffset(entry);
+        if (content != null) {
+            return slice(dataOffset, entry.compressedSize());
+        }
+        if (dataOffset + entry.compressedSize() > channel.size()) {
+            throw new EOFException("Unexpected end of zip file, entry data past the end : " + entry.name());
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.compressedSize());
+    }
+
+    private long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer loc = read(entry.localHeaderOffset(), LOC_HEADER_SIZE);
+        if (loc.getInt(0) != LOC_SIGNATURE) {
+            throw new ZipException("Invalid local header signature : " + entry.name());
+        }
+        int nameLength = Short.toUnsignedInt(loc.getShort(26));
+        int extraLength = Short.toUnsignedInt(loc.getShort(28));
+        return entry.localHeaderOffset() + LOC_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private List<Entry> readEntries() throws IOException {
+        long fileSize = content != null ? content.limit() : channel.size();
+        long endOffset = findEndHeader(fileSize);
+        ByteBuffer end = read(endOffset, END_HEADER_SIZE);
+
+        long entryCount = Short.toUnsignedInt(end.getShort(10));
+        long cenSize = Integer.toUnsignedLong(end.getInt(12));
+        long cenOffset = Integer.toUnsignedLong(end.getInt(16));
+
+        if (endOffset >= ZIP64_LOCATOR_SIZE) {
+            ByteBuffer locator = read(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                long zip64EndOffset = locator.getLong(8);
+                if (zip64EndOffset < 0 || zip64EndOffset > endOffset - ZIP64_LOCATOR_SIZE - ZIP64_END_HEADER_SIZE) {
+                    throw new ZipException("Invalid ZIP64 end of central directory offset : " + zip64EndOffset);
+                }
+                ByteBuffer zip64End = read(zip64EndOffset, ZIP64_END_HEADER_SIZE);
+                if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("Invalid ZIP64 end of central directory signature");
+                }
+                entryCount = zip64End.getLong(32);
+                cenSize = zip64End.getLong(40);
+                cenOffset = zip64End.getLong(48);
+            }
+        }
+
+        if (cenOffset < 0 || cenSize < 0 || cenOffset + cenSize > endOffset || cenSize > Integer.MAX_VALUE) {
+            throw new ZipException("Invalid central directory location");
+        }
+
+        ByteBuffer cen = content != null
+                ? slice(cenOffset, cenSize)
+                : channel.map(FileChannel.MapMode.READ_ONLY, cenOffset, cenSize).order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> result = new ArrayList<>((int) Math.min(entryCount, 1 << 16));
+        int position = 0;
+        while (position < cenSize) {
+            if (cenSize - position < CEN_HEADER_SIZE || cen.getInt(position) != CEN_SIGNATURE) {
+                throw new ZipException("Invalid central directory header at offset " + (cenOffset + position));
+            }
+            int flags = Short.toUnsignedInt(cen.getShort(position + 8));
+            int method = Short.toUnsignedInt(cen.getShort(position + 10));
+            long crc = Integer.toUnsignedLong(cen.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(cen.getInt(position + 20));
+            long size = Integer.toUnsignedLong(cen.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(cen.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(cen.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(cen.getShort(position + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(cen.getInt(position + 42));
+            int recordSize = CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (recordSize > cenSize - position) {
+                throw new ZipException("Central directory header past the end of the directory at offset " + (cenOffset + position));
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            cen.get(position + CEN_HEADER_SIZE, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // ZIP64 extended information, values are present only for the fields set to 0xFFFFFFFF
+            int extraPosition = position + CEN_HEADER_SIZE + nameLength;
+            int extraEnd = extraPosition + extraLength;
+            while (extraPosition + 4 <= extraEnd) {
+                int id = Short.toUnsignedInt(cen.getShort(extraPosition));
+                int length = Short.toUnsignedInt(cen.getShort(extraPosition + 2));
+                int valueEnd = extraPosition + 4 + length;
+                if (valueEnd > extraEnd) {
+                    throw new ZipException("Extra field past the end of its header : " + name);
+                }
+                if (id == ZIP64_EXTRA_ID) {
+                    int valuePosition = extraPosition + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = readZip64Value(cen, valuePosition, valueEnd, name);
+                        valuePosition += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = readZip64Value(cen, valuePosition, valueEnd, name);
+                        valuePosition += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = readZip64Value(cen, valuePosition, valueEnd, name);
+                    }
+                }
+                extraPosition = valueEnd;
+            }
+            if (size < 0 || compressedSize < 0 || localHeaderOffset < 0 || localHeaderOffset > cenOffset - LOC_HEADER_SIZE) {
+                throw new ZipException("Invalid sizes or local header offset in central directory : " + name);
+            }
+
+            result.add(new Entry(name, method, flags, crc, compressedSize, size, localHeaderOffset));
+            position += recordSize;
+        }
+        return result;
+    }
+
+    private static long readZip64Value(ByteBuffer cen, int position, int end, String name) throws ZipException {
+        if (position + 8 > end) {
+            throw new ZipException("ZIP64 extra field too short : " + name);
+        }
+        return cen.getLong(position);
+    }
+
+    private long findEndHeader(long fileSize) throws IOException {
+        if (fileSize < END_HEADER_SIZE) {
+            throw new ZipException("File is too small to be a zip archive");
+        }
+        int tailSize = (int) Math.min(fileSize, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = fileSize - tailSize;
+        ByteBuffer tail = read(tailOffset, tailSize);
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                return tailOffset + i;
+            }
+        }
+        throw new ZipException("End of central directory not found");
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (content != null) {
+            return slice(offset, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of zip file at offset " + (offset + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Part of the content buffer, independent of the others so threads can read entries concurrently.
+     */
+    private ByteBuffer slice(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > content.limit()) {
+            throw new EOFException("Unexpected end of zip archive at offset " + content.limit() + ", expected data up to " + (offset + length));
+        }
+        return content.slice((int) offset, (int) length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Compressed bytes consumed so far by a stream of {@link #getInputStream(Entry)}, null for a stored entry.
+     */
+    static LongSupplier compressedBytesRead(InputStream entryStream) {
+        return entryStream instanceof EntryInflaterInputStream inflating ? inflating::getCompressedBytesRead : null;
+    }
+
+    /**
+     * Raw deflate stream, releases the native inflater on close and feeds a dummy byte at the end
+     * of input the same way {@link java.util.zip.ZipFile} does. The input buffer is pooled.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+
+        private final BufferPool bufferPool;
+
+        private final EntryCheck check;
+
+        private boolean eof;
+
+        private boolean closed;
+
+        EntryInflaterInputStream(InputStream in, BufferPool bufferPool, EntryCheck check) {
+            super(in, new Inflater(true), 1);
+            this.bufferPool = bufferPool;
+            this.check = check;
+            this.buf = bufferPool.acquireArray();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // single bytes and skipped bytes are read through here too
+            return check.read(b, off, super.read(b, off, len));
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of deflated entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        long getCompressedBytesRead() {
+            return closed ? 0 : inf.getBytesRead();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                inf.end();
+                bufferPool.releaseArray(buf);
+            }
+        }
+    }
+
+    /**
+     * CRC and size of an entry, checked once its content is read to the end.
+     */
+    private static class EntryCheck {
+
+        private final Entry entry;
+
+        private final CRC32 crc = new CRC32();
+
+        private long size;
+
+        private boolean skipped;
+
+        EntryCheck(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Takes the result of a single byte read, returned as it is.
+         */
+        int read(int b) throws ZipException {
+            if (b < 0) {
+                end();
+            } else {
+                crc.update(b);
+                size++;
+            }
+            return b;
+        }
+
+        /**
+         * Takes the result of a read into the given bytes, returned as it is.
+         */
+        int read(byte[] b, int off, int count) throws ZipException {
+            if (count < 0) {
+                end();
+            } else {
+                crc.update(b, off, count);
+                size += count;
+            }
+            return count;
+        }
+
+        /**
+         * Bytes passed over without being read, the content can no longer be checked.
+         */
+        void skipped() {
+            skipped = true;
+        }
+
+        private void end() throws ZipException {
+            if (skipped) {
+                return;
+            }
+            if (size != entry.size()) {
+                throw new ZipException("Invalid entry size, expected " + entry.size() + " but got " + size + " bytes : " + entry.name());
+            }
+            if (crc.getValue() != entry.crc()) {
+                throw new ZipException("Invalid entry CRC, expected 0x" + Long.toHexString(entry.crc())
+                        + " but got 0x" + Long.toHexString(crc.getValue()) + " : " + entry.name());
+            }
+        }
+    }
+
+    private static class CheckedEntryInputStream extends FilterInputStream {
+
+        private final EntryCheck check;
+
+        CheckedEntryInputStream(InputStream in, EntryCheck check) {
+            super(in);
+            this.check = check;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return check.read(in.read());
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return check.read(b, off, in.read(b, off, len));
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            check.skipped();
+            return in.skip(n);
+        }
+    }
+
+    /**
+     * Stored entry in the file, still a {@link FileRangeInputStream} so it can be copied without being read.
+     */
+    private static class CheckedFileRangeInputStream extends FileRangeInputStream {
+
+        private final EntryCheck check;
+
+        CheckedFileRangeInputStream(FileChannel channel, long start, long length, BufferPool bufferPool, EntryCheck check) {
+            super(channel, start, length, bufferPool);
+            this.check = check;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return check.read(super.read());
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return check.read(b, off, super.read(b, off, len));
+        }
+
+        @Override
+        public long skip(long n) {
+            check.skipped();
+            return super.skip(n);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.example.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * Zip of the extracted emails. Entries are stored, not compressed, so appending an email stays a plain
+ * copy, with the size and CRC known from the spool ahead of the data as stored entries require.
+ */
+class ZipOutputSink extends OutputSink {
+
+    private ZipOutputStream zip;
+
+    ZipOutputSink(Path path) throws IOException {
+        super(path);
+    }
+
+    @Override
+    protected void writeEntry(OutputStream out, String name, long size, long crc, InputStream content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+        ZipOutputStream zipOutputStream = zip(out);
+        zipOutputStream.putNextEntry(entry);
+        copy(content, zipOutputStream);
+        zipOutputStream.closeEntry();
+    }
+
+    @Override
+    protected void finish(OutputStream out) throws IOException {
+        // the central directory, an empty zip has nothing else
+        zip(out).finish();
+    }
+
+    private ZipOutputStream zip(OutputStream out) {
+        if (zip == null) {
+            zip = new ZipOutputStream(out);
+        }
+        return zip;
+    }
+}